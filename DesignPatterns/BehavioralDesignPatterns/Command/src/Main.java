@@ -2,12 +2,34 @@ package DesignPatterns.BehavioralDesignPatterns.Command.src;
 
 // Java code to explain Command Design Pattern
 
-import java.util.Stack;
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.Closeable;
+import java.io.DataInput;
+import java.io.DataInputStream;
+import java.io.DataOutput;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.io.UncheckedIOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.IdentityHashMap;
+import java.util.List;
+import java.util.Map;
 
 // Command Interface
 interface Command {
     void execute();
     void undo();
+
+    // Rough heap footprint, used to keep the history within its byte budget
+    default long estimatedBytes() {
+        return 32;
+    }
 }
 
 // Concrete Command Classes
@@ -31,26 +53,55 @@ class CopyCommand implements Command {
     }
 }
 
+// Commands keep only the inverse of their edit, so their size follows
+// the edit rather than the document
 class CutCommand implements Command {
     private Application app;
     private Editor editor;
-    private String backup;
+    private int position;
+    private String removed;
 
     public CutCommand(Application app, Editor editor) {
         this.app = app;
         this.editor = editor;
     }
 
+    // Restores a command read back from the history's spill log
+    CutCommand(Application app, Editor editor, int position, String removed) {
+        this(app, editor);
+        this.position = position;
+        this.removed = removed;
+    }
+
     @Override
     public void execute() {
-        backup = editor.getText();
-        app.clipboard = editor.getSelection();
+        position = editor.getSelectionStart();
+        removed = editor.getSelection();
+        app.clipboard = removed;
         editor.deleteSelection();
     }
 
     @Override
     public void undo() {
-        editor.setText(backup);
+        editor.replace(position, position, removed);
+        editor.select(position, position + removed.length());
+    }
+
+    int getPosition() {
+        return position;
+    }
+
+    String getRemoved() {
+        return removed;
+    }
+
+    Editor getEditor() {
+        return editor;
+    }
+
+    @Override
+    public long estimatedBytes() {
+        return 32 + (removed == null ? 0 : 40 + removed.length() * 2L);
     }
 }
 
@@ -58,36 +109,72 @@ class CutCommand implements Command {
 class PasteCommand implements Command {
     private Application app;
     private Editor editor;
-    private String backup;
+    private int position;
+    private String removed;
+    private int insertedLength;
 
     public PasteCommand(Application app, Editor editor) {
         this.app = app;
         this.editor = editor;
     }
 
+    // Restores a command read back from the history's spill log
+    PasteCommand(Application app, Editor editor, int position, String removed, int insertedLength) {
+        this(app, editor);
+        this.position = position;
+        this.removed = removed;
+        this.insertedLength = insertedLength;
+    }
+
     @Override
     public void execute() {
         System.out.println("Executing PasteCommand");
-        backup = editor.getText();
-        editor.replaceSelection(app.clipboard);
+        String pasted = app.clipboard == null ? "" : app.clipboard;
+        position = editor.getSelectionStart();
+        removed = editor.getSelection();
+        insertedLength = pasted.length();
+        editor.replaceSelection(pasted);
     }
 
     @Override
     public void undo() {
         System.out.println("Undoing PasteCommand");
-        editor.setText(backup);
+        editor.replace(position, position + insertedLength, removed);
+        editor.select(position, position + removed.length());
+    }
+
+    int getPosition() {
+        return position;
+    }
+
+    String getRemoved() {
+        return removed;
+    }
+
+    int getInsertedLength() {
+        return insertedLength;
+    }
+
+    Editor getEditor() {
+        return editor;
+    }
+
+    @Override
+    public long estimatedBytes() {
+        return 36 + (removed == null ? 0 : 40 + removed.length() * 2L);
     }
 }
 
 // Receiver Classes
-class Application {
+// Closing the application deletes the history's spill log
+class Application implements Closeable {
     String clipboard;
     Editor activeEditor;
     CommandHistory history;
 
     // Initialize history in the constructor
     Application() {
-        this.history = new CommandHistory();
+        this.history = new CommandHistory(100, 1 << 20, new EditorCommandCodec(this));
     }
 
     void executeCommand(Command command) {
@@ -103,63 +190,370 @@ class Application {
         Command command = history.pop();
         if (command != null) {
             command.undo();
+        } else {
+            System.out.println("Nothing to undo");
         }
     }
+
+    @Override
+    public void close() throws IOException {
+        history.close();
+    }
 }
 
+// Text is kept in a StringBuilder so edits only move the text after them.
+// The selection is [selectionStart, selectionEnd); an empty one is a caret.
 class Editor {
-    String text;
+    private final StringBuilder text = new StringBuilder();
+    private int selectionStart;
+    private int selectionEnd;
 
     String getText() {
-        return text;
+        return text.toString();
     }
 
     void setText(String text) {
-        this.text = text;
+        this.text.setLength(0);
+        this.text.append(text);
+        selectionStart = selectionEnd = 0;
+    }
+
+    int length() {
+        return text.length();
+    }
+
+    void select(int start, int end) {
+        if (start < 0 || start > end || end > text.length()) {
+            throw new IndexOutOfBoundsException("Selection " + start + ".." + end + " outside 0.." + text.length());
+        }
+        selectionStart = start;
+        selectionEnd = end;
+    }
+
+    int getSelectionStart() {
+        return selectionStart;
+    }
+
+    int getSelectionEnd() {
+        return selectionEnd;
     }
 
     String getSelection() {
         // Return selected text
-        return "";
+        return text.substring(selectionStart, selectionEnd);
     }
 
     void deleteSelection() {
         // Delete selected text
+        replaceSelection("");
     }
 
     void replaceSelection(String text) {
-        // Replace selected text with input text
+        // Replace selected text with input text, leaving the caret after it
+        replace(selectionStart, selectionEnd, text);
+        selectionStart = selectionEnd = selectionStart + text.length();
+    }
+
+    // Replaces [start, end) with text; the selection is left for the caller to set
+    void replace(int start, int end, String text) {
+        this.text.replace(start, end, text);
+        selectionStart = selectionEnd = Math.min(selectionStart, this.text.length());
     }
 }
 
 // Command History Class
-class CommandHistory {
-    private Stack<Command> history = new Stack<>();
+// Keeps the most recent commands in memory, up to a count and a byte budget, and spills
+// older ones to an append-only log on disk. Undoing a recent command is an in-memory
+// pop; older ones are read back from the end of the log. Without a codec, or for
+// commands the codec can't encode, the command is dropped together with everything
+// older: undo replays position-based deltas, which only fit the document they were
+// recorded against, so nothing before a gap may stay undoable.
+class CommandHistory implements Closeable {
+    private final ArrayDeque<Command> recent = new ArrayDeque<>();
+    private final int capacity;
+    private final long byteBudget;
+    private final CommandCodec codec;
+    private long bytes;
+    private SpillLog spilled;
+    private long dropped;
+
+    CommandHistory() {
+        this(100, 1 << 20, null);
+    }
+
+    CommandHistory(int capacity, long byteBudget, CommandCodec codec) {
+        if (capacity <= 0 || byteBudget <= 0) {
+            throw new IllegalArgumentException("Capacity and byte budget must be positive");
+        }
+        this.capacity = capacity;
+        this.byteBudget = byteBudget;
+        this.codec = codec;
+    }
 
     void push(Command command) {
-        history.push(command);
+        recent.addLast(command);
+        bytes += command.estimatedBytes();
+        // The newest command always stays in memory, however big it is
+        while (recent.size() > capacity || (bytes > byteBudget && recent.size() > 1)) {
+            Command oldest = recent.pollFirst();
+            bytes -= oldest.estimatedBytes();
+            spill(oldest);
+        }
     }
 
+    // Null when there is nothing left to undo
     Command pop() {
-        return history.pop();
+        Command command = recent.pollLast();
+        if (command != null) {
+            bytes -= command.estimatedBytes();
+            return command;
+        }
+        if (spilled == null || spilled.isEmpty()) {
+            return null;
+        }
+        try {
+            byte[] record = spilled.removeLast();
+            return codec.read(new DataInputStream(new ByteArrayInputStream(record)));
+        } catch (IOException e) {
+            throw new UncheckedIOException("Could not read spilled command", e);
+        }
+    }
+
+    int size() {
+        return recent.size() + (spilled == null ? 0 : spilled.size());
+    }
+
+    int inMemory() {
+        return recent.size();
+    }
+
+    long getDropped() {
+        return dropped;
+    }
+
+    private void spill(Command command) {
+        if (codec == null) {
+            dropOlder();
+            return;
+        }
+        try {
+            ByteArrayOutputStream buffer = new ByteArrayOutputStream();
+            if (!codec.write(command, new DataOutputStream(buffer))) {
+                dropOlder();
+                return;
+            }
+            if (spilled == null) {
+                spilled = new SpillLog(Files.createTempFile("command-history", ".log"));
+            }
+            spilled.append(buffer.toByteArray());
+        } catch (IOException e) {
+            // Losing old undo steps beats failing the edit that pushed them out
+            dropOlder();
+        }
+    }
+
+    // Drops the command being spilled and every spilled one before it
+    private void dropOlder() {
+        dropped++;
+        if (spilled == null) {
+            return;
+        }
+        dropped += spilled.size();
+        try {
+            spilled.clear();
+        } catch (IOException e) {
+            try {
+                spilled.close();
+            } catch (IOException ignored) {
+                // Nothing more to do, the log is abandoned
+            }
+            spilled = null;
+        }
+    }
+
+    @Override
+    public void close() throws IOException {
+        recent.clear();
+        bytes = 0;
+        if (spilled != null) {
+            spilled.close();
+            spilled = null;
+        }
+    }
+}
+
+// Turns commands into bytes and back, for commands spilled out of memory.
+// write returns false for commands it can't encode.
+interface CommandCodec {
+    boolean write(Command command, DataOutput out) throws IOException;
+    Command read(DataInput in) throws IOException;
+}
+
+// Codec for the editor commands. Editors stay alive while their commands are on disk,
+// so only an index into the editors seen so far is written for them.
+class EditorCommandCodec implements CommandCodec {
+    private static final byte COPY = 0;
+    private static final byte CUT = 1;
+    private static final byte PASTE = 2;
+
+    private final Application app;
+    private final List<Editor> editors = new ArrayList<>();
+    private final Map<Editor, Integer> editorIndexes = new IdentityHashMap<>();
+
+    EditorCommandCodec(Application app) {
+        this.app = app;
+    }
+
+    @Override
+    public boolean write(Command command, DataOutput out) throws IOException {
+        if (command instanceof CopyCommand) {
+            out.writeByte(COPY);
+        } else if (command instanceof CutCommand) {
+            CutCommand cut = (CutCommand) command;
+            out.writeByte(CUT);
+            out.writeInt(indexOf(cut.getEditor()));
+            out.writeInt(cut.getPosition());
+            writeString(out, cut.getRemoved());
+        } else if (command instanceof PasteCommand) {
+            PasteCommand paste = (PasteCommand) command;
+            out.writeByte(PASTE);
+            out.writeInt(indexOf(paste.getEditor()));
+            out.writeInt(paste.getPosition());
+            writeString(out, paste.getRemoved());
+            out.writeInt(paste.getInsertedLength());
+        } else {
+            return false;
+        }
+        return true;
+    }
+
+    @Override
+    public Command read(DataInput in) throws IOException {
+        byte type = in.readByte();
+        switch (type) {
+            case COPY:
+                // Copy has nothing to undo, so which editor it ran in doesn't matter
+                return new CopyCommand(app, null);
+            case CUT:
+                return new CutCommand(app, editors.get(in.readInt()), in.readInt(), readString(in));
+            case PASTE:
+                return new PasteCommand(app, editors.get(in.readInt()), in.readInt(), readString(in), in.readInt());
+            default:
+                throw new IOException("Unknown command type " + type);
+        }
+    }
+
+    private int indexOf(Editor editor) {
+        return editorIndexes.computeIfAbsent(editor, e -> {
+            editors.add(e);
+            return editors.size() - 1;
+        });
+    }
+
+    // Length-prefixed UTF-8, -1 for null; unlike writeUTF it has no 64 KB limit
+    static void writeString(DataOutput out, String value) throws IOException {
+        if (value == null) {
+            out.writeInt(-1);
+            return;
+        }
+        byte[] bytes = value.getBytes(StandardCharsets.UTF_8);
+        out.writeInt(bytes.length);
+        out.write(bytes);
+    }
+
+    static String readString(DataInput in) throws IOException {
+        int length = in.readInt();
+        if (length < 0) {
+            return null;
+        }
+        byte[] bytes = new byte[length];
+        in.readFully(bytes);
+        return new String(bytes, StandardCharsets.UTF_8);
+    }
+}
+
+// Append-only log of records, each followed by its length so the log can be
+// popped from the end. Removing the last record truncates the file.
+class SpillLog implements Closeable {
+    private final Path path;
+    private final RandomAccessFile file;
+    private int size;
+
+    SpillLog(Path path) throws IOException {
+        this.path = path;
+        this.file = new RandomAccessFile(path.toFile(), "rw");
+        // In case nobody closes the history before the process exits
+        path.toFile().deleteOnExit();
+        file.setLength(0);
+    }
+
+    void append(byte[] record) throws IOException {
+        file.seek(file.length());
+        file.write(record);
+        file.writeInt(record.length);
+        size++;
+    }
+
+    byte[] removeLast() throws IOException {
+        long end = file.length();
+        file.seek(end - 4);
+        int length = file.readInt();
+        long start = end - 4 - length;
+        byte[] record = new byte[length];
+        file.seek(start);
+        file.readFully(record);
+        file.setLength(start);
+        size--;
+        return record;
+    }
+
+    void clear() throws IOException {
+        file.setLength(0);
+        size = 0;
+    }
+
+    int size() {
+        return size;
+    }
+
+    boolean isEmpty() {
+        return size == 0;
+    }
+
+    @Override
+    public void close() throws IOException {
+        file.close();
+        Files.deleteIfExists(path);
     }
 }
 
 // Main Class
 public class Main {
-    public static void main(String[] args) {
-        Application app = new Application();
-        Editor editor = new Editor();
-        Command copyCommand = new CopyCommand(app, editor);
-        Command cutCommand = new CutCommand(app, editor);
-        Command pasteCommand = new PasteCommand(app, editor);
-
-        // Execute commands
-        app.executeCommand(copyCommand);
-        app.executeCommand(cutCommand);
-        app.executeCommand(pasteCommand);
-
-        // Undo last command
-        app.undo();
+    public static void main(String[] args) throws IOException {
+        try (Application app = new Application()) {
+            Editor editor = new Editor();
+            editor.setText("Hello, command pattern!");
+            editor.select(0, 5);
+            Command copyCommand = new CopyCommand(app, editor);
+            Command cutCommand = new CutCommand(app, editor);
+            Command pasteCommand = new PasteCommand(app, editor);
+
+            // Execute commands
+            app.executeCommand(copyCommand);
+            app.executeCommand(cutCommand);
+            editor.select(editor.length(), editor.length());
+            app.executeCommand(pasteCommand);
+            System.out.println("Text: " + editor.getText());
+
+            // Undo last command
+            app.undo();
+            System.out.println("Text: " + editor.getText());
+            app.undo();
+            System.out.println("Text: " + editor.getText());
+
+            // Undoing past the start of the history is a no-op
+            app.undo();
+            app.undo();
+        }
     }
 }
\ No newline at end of file
@@ -1,16 +1,336 @@
 package DesignPatterns.BehavioralDesignPatterns.Iterator.src;
 
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.Closeable;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.EOFException;
+import java.io.IOException;
+import java.io.InterruptedIOException;
+import java.io.ObjectInputStream;
+import java.io.ObjectOutputStream;
+import java.io.Serializable;
+import java.io.UncheckedIOException;
+import java.net.InetAddress;
+import java.net.ServerSocket;
+import java.net.Socket;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.util.AbstractList;
 import java.util.List;
 import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.Objects;
+import java.util.Queue;
+import java.util.Random;
+import java.util.Spliterator;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.Executor;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.function.Consumer;
+import java.util.function.Supplier;
+import java.util.stream.Stream;
+import java.util.stream.StreamSupport;
 
 interface SocialNetwork {
     ProfileIterator createFriendsIterator(String profileId);
     ProfileIterator createCoworkersIterator(String profileId);
+    // Continues an iteration where the checkpoint was taken
+    ProfileIterator resume(ProfileCheckpoint checkpoint);
+}
+
+// One page of a social graph response; nextCursor is -1 after the last page
+class ProfilePage {
+    final List<Profile> profiles;
+    final int nextCursor;
+
+    ProfilePage(List<Profile> profiles, int nextCursor) {
+        // Pages are shared through the cache, so nobody gets to modify them
+        this.profiles = Collections.unmodifiableList(profiles);
+        this.nextCursor = nextCursor;
+    }
+}
+
+// Shared cache of social graph pages, bounded by the number of profiles it holds and
+// by age. An empty page counts as one profile, so empty pages are bounded too. Concurrent misses on the same key wait for a single in-flight request.
+// Callers that stream through a graph page by page can load without retaining, so
+// they share in-flight requests but leave nothing behind.
+class SocialGraphCache {
+    private static final class Key {
+        final String profileId;
+        final String type;
+        final int cursor;
+        final int limit;
+
+        Key(String profileId, String type, int cursor, int limit) {
+            this.profileId = profileId;
+            this.type = type;
+            this.cursor = cursor;
+            this.limit = limit;
+        }
+
+        @Override
+        public boolean equals(Object o) {
+            if (!(o instanceof Key)) {
+                return false;
+            }
+            Key other = (Key) o;
+            return cursor == other.cursor && limit == other.limit
+                    && profileId.equals(other.profileId) && type.equals(other.type);
+        }
+
+        @Override
+        public int hashCode() {
+            return Objects.hash(profileId, type, cursor, limit);
+        }
+    }
+
+    private static final class Entry {
+        final CompletableFuture<ProfilePage> page = new CompletableFuture<>();
+        volatile long loadedAt;
+        // Profiles counted against the budget, at least 1 once loaded and 0 while loading
+        int weight;
+    }
+
+    private final long maxProfiles;
+    private final long ttlNanos;
+    private final AtomicLong hits = new AtomicLong();
+    private final AtomicLong misses = new AtomicLong();
+    private final AtomicLong evictions = new AtomicLong();
+
+    // Access-ordered, so the eldest entry is the least recently used one
+    private final LinkedHashMap<Key, Entry> entries = new LinkedHashMap<>(16, 0.75f, true);
+    private long profiles;
+
+    SocialGraphCache(long maxProfiles, long ttl, TimeUnit unit) {
+        if (maxProfiles <= 0) {
+            throw new IllegalArgumentException("maxProfiles must be positive");
+        }
+        this.maxProfiles = maxProfiles;
+        this.ttlNanos = unit.toNanos(ttl);
+    }
+
+    ProfilePage get(String profileId, String type, int cursor, int limit, Supplier<ProfilePage> loader) {
+        return get(profileId, type, cursor, limit, loader, true);
+    }
+
+    ProfilePage get(String profileId, String type, int cursor, int limit, Supplier<ProfilePage> loader,
+                    boolean retain) {
+        Key key = new Key(profileId, type, cursor, limit);
+        Entry entry;
+        boolean owner = false;
+        synchronized (entries) {
+            entry = entries.get(key);
+            if (entry != null && isExpired(entry)) {
+                removeEntry(key, entry);
+                entry = null;
+            }
+            if (entry == null) {
+                entry = new Entry();
+                entries.put(key, entry);
+                owner = true;
+            }
+        }
+
+        if (owner) {
+            misses.incrementAndGet();
+            ProfilePage page;
+            try {
+                page = loader.get();
+                entry.loadedAt = System.nanoTime();
+                synchronized (entries) {
+                    // A page bigger than the whole budget is shared but not kept either
+                    if (!retain || page.profiles.size() > maxProfiles) {
+                        removeEntry(key, entry);
+                    } else if (entries.get(key) == entry) {
+                        entry.weight = Math.max(page.profiles.size(), 1);
+                        profiles += entry.weight;
+                        evictOverflow();
+                    }
+                }
+            } catch (Throwable e) {
+                // Don't cache failures, the next caller retries. Errors too, or the entry
+                // would stay loading and block everyone waiting on it.
+                remove(key, entry);
+                entry.page.completeExceptionally(e);
+                throw e;
+            }
+            entry.page.complete(page);
+        } else {
+            hits.incrementAndGet();
+        }
+        return await(entry);
+    }
+
+    private ProfilePage await(Entry entry) {
+        boolean interrupted = false;
+        try {
+            while (true) {
+                try {
+                    return entry.page.get();
+                } catch (InterruptedException e) {
+                    interrupted = true;
+                } catch (ExecutionException e) {
+                    Throwable cause = e.getCause();
+                    if (cause instanceof RuntimeException) {
+                        throw (RuntimeException) cause;
+                    }
+                    if (cause instanceof Error) {
+                        throw (Error) cause;
+                    }
+                    throw new IllegalStateException("Social graph request failed", cause);
+                }
+            }
+        } finally {
+            if (interrupted) {
+                Thread.currentThread().interrupt();
+            }
+        }
+    }
+
+    // Entries still loading never expire
+    private boolean isExpired(Entry entry) {
+        return entry.page.isDone() && System.nanoTime() - entry.loadedAt > ttlNanos;
+    }
+
+    // Evicts least recently used loaded entries until the budget holds. Expired entries met
+    // on the way are dropped too, so the walk stops at the first live entry within budget.
+    private void evictOverflow() {
+        long now = System.nanoTime();
+        Iterator<Entry> it = entries.values().iterator();
+        while (it.hasNext()) {
+            Entry entry = it.next();
+            if (entry.weight == 0) {
+                continue;
+            }
+            boolean expired = now - entry.loadedAt > ttlNanos;
+            if (!expired && profiles <= maxProfiles) {
+                break;
+            }
+            it.remove();
+            profiles -= entry.weight;
+            if (!expired) {
+                evictions.incrementAndGet();
+            }
+        }
+    }
+
+    // Callers hold the lock
+    private void removeEntry(Key key, Entry entry) {
+        if (entries.remove(key, entry)) {
+            profiles -= entry.weight;
+        }
+    }
+
+    private void remove(Key key, Entry entry) {
+        synchronized (entries) {
+            removeEntry(key, entry);
+        }
+    }
+
+    void invalidate(String profileId, String type) {
+        synchronized (entries) {
+            Iterator<Map.Entry<Key, Entry>> it = entries.entrySet().iterator();
+            while (it.hasNext()) {
+                Map.Entry<Key, Entry> next = it.next();
+                if (next.getKey().profileId.equals(profileId) && next.getKey().type.equals(type)) {
+                    it.remove();
+                    profiles -= next.getValue().weight;
+                }
+            }
+        }
+    }
+
+    void clear() {
+        synchronized (entries) {
+            entries.clear();
+            profiles = 0;
+        }
+    }
+
+    int size() {
+        synchronized (entries) {
+            return entries.size();
+        }
+    }
+
+    long profileCount() {
+        synchronized (entries) {
+            return profiles;
+        }
+    }
+
+    long getHits() {
+        return hits.get();
+    }
+
+    long getMisses() {
+        return misses.get();
+    }
+
+    long getEvictions() {
+        return evictions.get();
+    }
 }
 
 class Facebook implements SocialNetwork {
     // ... The bulk of the collection's code should go here ...
 
+    // Where pages come from on a cache miss
+    private final SocialGraphSource source;
+    // Shared by every iterator and stream this network hands out
+    private final SocialGraphCache cache;
+
+    public Facebook() {
+        this(StaticSocialGraph.dummy());
+    }
+
+    public Facebook(SocialGraphCache cache) {
+        this(StaticSocialGraph.dummy(), cache);
+    }
+
+    public Facebook(SocialGraphSource source) {
+        // At roughly 50 bytes per compact profile this is about 50 MB
+        this(source, new SocialGraphCache(1_000_000, 5, TimeUnit.MINUTES));
+    }
+
+    public Facebook(SocialGraphSource source, SocialGraphCache cache) {
+        this.source = source;
+        this.cache = cache;
+    }
+
+    SocialGraphCache getCache() {
+        return cache;
+    }
+
+    // Runs background page fetches for paged iterators
+    private final Executor executor = Executors.newCachedThreadPool(runnable -> {
+        Thread thread = new Thread(runnable, "facebook-fetch");
+        thread.setDaemon(true);
+        return thread;
+    });
+
+    Executor getExecutor() {
+        return executor;
+    }
+
     // Iterator creation code.
     public ProfileIterator createFriendsIterator(String profileId) {
         return new FacebookIterator(this, profileId, "friends");
@@ -20,12 +340,446 @@ class Facebook implements SocialNetwork {
         return new FacebookIterator(this, profileId, "coworkers");
     }
 
+    public ProfileIterator createFriendsIterator(String profileId, int pageSize) {
+        return new PagedFacebookIterator(this, profileId, "friends", pageSize);
+    }
+
+    public ProfileIterator createCoworkersIterator(String profileId, int pageSize) {
+        return new PagedFacebookIterator(this, profileId, "coworkers", pageSize);
+    }
+
+    public ProfileIterator resume(ProfileCheckpoint checkpoint) {
+        if (checkpoint.getPageSize() > 0) {
+            return new PagedFacebookIterator(this, checkpoint.getProfileId(), checkpoint.getType(),
+                    checkpoint.getPageSize(), checkpoint.getPosition());
+        }
+        return new FacebookIterator(this, checkpoint.getProfileId(), checkpoint.getType(), checkpoint.getPosition());
+    }
+
+    public Stream<Profile> friendsStream(String profileId) {
+        return stream(profileId, "friends", ProfileSpliterator.DEFAULT_PAGE_SIZE);
+    }
+
+    public Stream<Profile> coworkersStream(String profileId) {
+        return stream(profileId, "coworkers", ProfileSpliterator.DEFAULT_PAGE_SIZE);
+    }
+
+    // Call parallel() on the result to fan the pages out over the common pool
+    public Stream<Profile> stream(String profileId, String type, int pageSize) {
+        return StreamSupport.stream(
+                new ProfileSpliterator(this, profileId, type, pageSize, 0, socialGraphCount(profileId, type)), false);
+    }
+
+    public int socialGraphCount(String profileId, String type) {
+        try {
+            return source.count(profileId, type);
+        } catch (IOException e) {
+            throw new UncheckedIOException(e);
+        }
+    }
+
+    // Whole graph as one cached page
+    List<Profile> cachedSocialGraph(String profileId, String type) {
+        return socialGraphRequest(profileId, type, 0, Integer.MAX_VALUE).profiles;
+    }
+
     public List<Profile> socialGraphRequest(String profileId, String type) {
+        return fetch(profileId, type, 0, Integer.MAX_VALUE).profiles;
+    }
+
+    // Paged variant of the request: up to limit profiles starting at cursor.
+    // Served from the shared cache, only misses reach the network.
+    public ProfilePage socialGraphRequest(String profileId, String type, int cursor, int limit) {
+        return socialGraphRequest(profileId, type, cursor, limit, true);
+    }
+
+    // Paged walks pass retain = false: they only share requests already in flight, so
+    // walking a huge graph doesn't fill the cache with pages nobody will read again
+    ProfilePage socialGraphRequest(String profileId, String type, int cursor, int limit, boolean retain) {
+        return cache.get(profileId, type, cursor, limit, () -> fetchPage(profileId, type, cursor, limit), retain);
+    }
+
+    private ProfilePage fetchPage(String profileId, String type, int cursor, int limit) {
+        ProfilePage page = fetch(profileId, type, cursor, limit);
+        // Cached pages can add up to a lot of profiles, keep them compact
+        return new ProfilePage(ProfileStore.of(page.profiles).asList(), page.nextCursor);
+    }
+
+    private ProfilePage fetch(String profileId, String type, int cursor, int limit) {
+        try {
+            return source.fetch(profileId, type, cursor, limit);
+        } catch (IOException e) {
+            throw new UncheckedIOException(e);
+        }
+    }
+}
+
+// Where a social network gets its graph from
+interface SocialGraphSource {
+    // Up to limit profiles starting at cursor
+    ProfilePage fetch(String profileId, String type, int cursor, int limit) throws IOException;
+    int count(String profileId, String type) throws IOException;
+}
+
+// Same fixed list of profiles for everyone
+class StaticSocialGraph implements SocialGraphSource {
+    private final List<Profile> profiles;
+
+    StaticSocialGraph(List<Profile> profiles) {
+        this.profiles = new ArrayList<>(profiles);
+    }
+
+    static StaticSocialGraph dummy() {
         // For now, let's just return a dummy list of profiles.
         List<Profile> profiles = new ArrayList<>();
         profiles.add(new Profile("2", "Jane Doe", "jane.doe@example.com", "Facebook"));
         profiles.add(new Profile("3", "Bob Smith", "bob.smith@example.com", "Facebook"));
-        return profiles;
+        return new StaticSocialGraph(profiles);
+    }
+
+    public ProfilePage fetch(String profileId, String type, int cursor, int limit) {
+        int end = (int) Math.min(profiles.size(), (long) cursor + limit);
+        return new ProfilePage(new ArrayList<>(profiles.subList(cursor, end)), end < profiles.size() ? end : -1);
+    }
+
+    public int count(String profileId, String type) {
+        return profiles.size();
+    }
+}
+
+// Deterministic synthetic graph with a power-law degree distribution. Nothing is stored:
+// a profile's degree and its k-th neighbour are both pure functions of the seed, so any
+// page can be generated on demand and the same seed always gives the same graph.
+// Neighbours are drawn uniformly, so a profile can list someone twice or itself.
+class SyntheticSocialGraph implements SocialGraphSource {
+    private static final String[] DOMAINS = {"example.com", "example.org", "example.net", "mail.example.com"};
+
+    private final int profileCount;
+    private final int minDegree;
+    private final double exponent;
+    private final long seed;
+
+    // exponent is the power-law exponent of the degree distribution and must be above 1;
+    // real social graphs sit around 2 to 3
+    SyntheticSocialGraph(int profileCount, int minDegree, double exponent, long seed) {
+        if (profileCount < 2 || minDegree < 1 || exponent <= 1) {
+            throw new IllegalArgumentException("Need profileCount >= 2, minDegree >= 1 and exponent > 1");
+        }
+        this.profileCount = profileCount;
+        this.minDegree = minDegree;
+        this.exponent = exponent;
+        this.seed = seed;
+    }
+
+    int getProfileCount() {
+        return profileCount;
+    }
+
+    public ProfilePage fetch(String profileId, String type, int cursor, int limit) {
+        long index = indexOf(profileId);
+        long salt = type.hashCode();
+        int degree = degree(index, salt);
+        int end = (int) Math.min(degree, (long) cursor + limit);
+        List<Profile> profiles = new ArrayList<>(Math.max(0, end - cursor));
+        for (int k = cursor; k < end; k++) {
+            profiles.add(profile((int) Math.floorMod(mix(seed ^ mix(index * 31 + salt) + k), (long) profileCount)));
+        }
+        return new ProfilePage(profiles, end < degree ? end : -1);
+    }
+
+    public int count(String profileId, String type) {
+        return degree(indexOf(profileId), type.hashCode());
+    }
+
+    static Profile profile(int index) {
+        String id = Integer.toString(index);
+        return new Profile(id, "User " + id, "user" + id + "@" + DOMAINS[index % DOMAINS.length], "Facebook");
+    }
+
+    // Inverse transform sampling of a Pareto distribution, capped at everyone else
+    private int degree(long index, long salt) {
+        double uniform = 1.0 - (mix(seed ^ mix(index * 31 + salt)) >>> 11) * 0x1.0p-53;
+        double degree = minDegree * Math.pow(uniform, -1.0 / (exponent - 1));
+        return (int) Math.min(degree, profileCount - 1);
+    }
+
+    // Numeric ids inside the graph map to themselves, anything else is hashed in
+    private long indexOf(String profileId) {
+        try {
+            int index = Integer.parseInt(profileId);
+            if (index >= 0 && index < profileCount) {
+                return index;
+            }
+        } catch (NumberFormatException e) {
+            // fall through
+        }
+        return Math.floorMod(profileId.hashCode(), profileCount);
+    }
+
+    // SplitMix64 finalizer
+    private static long mix(long z) {
+        z = (z ^ (z >>> 30)) * 0xBF58476D1CE4E5B9L;
+        z = (z ^ (z >>> 27)) * 0x94D049BB133111EBL;
+        return z ^ (z >>> 31);
+    }
+}
+
+// Adds a fixed delay to every request, to stand in for a remote service in process
+class DelayedSocialGraphSource implements SocialGraphSource {
+    private final SocialGraphSource source;
+    private final long latencyMillis;
+
+    DelayedSocialGraphSource(SocialGraphSource source, long latencyMillis) {
+        this.source = source;
+        this.latencyMillis = latencyMillis;
+    }
+
+    public ProfilePage fetch(String profileId, String type, int cursor, int limit) throws IOException {
+        delay();
+        return source.fetch(profileId, type, cursor, limit);
+    }
+
+    public int count(String profileId, String type) throws IOException {
+        delay();
+        return source.count(profileId, type);
+    }
+
+    private void delay() throws IOException {
+        try {
+            Thread.sleep(latencyMillis);
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new InterruptedIOException("Interrupted while waiting for the social graph");
+        }
+    }
+}
+
+// Wire format shared by SocialGraphServer and RemoteSocialGraphSource. A request is an op
+// byte, profile id and type, plus cursor and limit for pages. A response is a status byte,
+// then either an error message, a count, or the next cursor and the profiles.
+final class SocialGraphProtocol {
+    static final byte FETCH = 0;
+    static final byte COUNT = 1;
+    static final byte OK = 0;
+    static final byte ERROR = 1;
+
+    private SocialGraphProtocol() {
+    }
+
+    static void writeProfile(DataOutputStream out, Profile profile) throws IOException {
+        writeNullable(out, profile.getId());
+        writeNullable(out, profile.getName());
+        writeNullable(out, profile.getEmail());
+        writeNullable(out, profile.getNetwork());
+    }
+
+    static Profile readProfile(DataInputStream in) throws IOException {
+        return new Profile(readNullable(in), readNullable(in), readNullable(in), readNullable(in));
+    }
+
+    private static void writeNullable(DataOutputStream out, String value) throws IOException {
+        out.writeBoolean(value != null);
+        if (value != null) {
+            out.writeUTF(value);
+        }
+    }
+
+    private static String readNullable(DataInputStream in) throws IOException {
+        return in.readBoolean() ? in.readUTF() : null;
+    }
+}
+
+// Serves a SocialGraphSource on a loopback port, one thread per connection,
+// optionally sleeping before every response to simulate network latency
+class SocialGraphServer implements Closeable {
+    private final SocialGraphSource source;
+    private final long latencyMillis;
+    private final ServerSocket serverSocket;
+    private final ExecutorService executor = Executors.newCachedThreadPool(runnable -> {
+        Thread thread = new Thread(runnable, "social-graph-server");
+        thread.setDaemon(true);
+        return thread;
+    });
+
+    SocialGraphServer(SocialGraphSource source, long latencyMillis) throws IOException {
+        this.source = source;
+        this.latencyMillis = latencyMillis;
+        this.serverSocket = new ServerSocket(0, 50, InetAddress.getLoopbackAddress());
+        executor.execute(this::acceptLoop);
+    }
+
+    int getPort() {
+        return serverSocket.getLocalPort();
+    }
+
+    private void acceptLoop() {
+        while (!serverSocket.isClosed()) {
+            try {
+                Socket socket = serverSocket.accept();
+                socket.setTcpNoDelay(true);
+                executor.execute(() -> serve(socket));
+            } catch (IOException e) {
+                // Closed, or a failed accept we can't do anything about
+            }
+        }
+    }
+
+    private void serve(Socket socket) {
+        try (socket;
+             DataInputStream in = new DataInputStream(new BufferedInputStream(socket.getInputStream()));
+             DataOutputStream out = new DataOutputStream(new BufferedOutputStream(socket.getOutputStream()))) {
+            while (true) {
+                byte op;
+                try {
+                    op = in.readByte();
+                } catch (EOFException e) {
+                    return;
+                }
+                String profileId = in.readUTF();
+                String type = in.readUTF();
+                int cursor = op == SocialGraphProtocol.FETCH ? in.readInt() : 0;
+                int limit = op == SocialGraphProtocol.FETCH ? in.readInt() : 0;
+                if (latencyMillis > 0) {
+                    Thread.sleep(latencyMillis);
+                }
+                try {
+                    if (op == SocialGraphProtocol.FETCH) {
+                        ProfilePage page = source.fetch(profileId, type, cursor, limit);
+                        out.writeByte(SocialGraphProtocol.OK);
+                        out.writeInt(page.nextCursor);
+                        out.writeInt(page.profiles.size());
+                        for (Profile profile : page.profiles) {
+                            SocialGraphProtocol.writeProfile(out, profile);
+                        }
+                    } else if (op == SocialGraphProtocol.COUNT) {
+                        int count = source.count(profileId, type);
+                        out.writeByte(SocialGraphProtocol.OK);
+                        out.writeInt(count);
+                    } else {
+                        out.writeByte(SocialGraphProtocol.ERROR);
+                        out.writeUTF("Unknown op " + op);
+                    }
+                } catch (IOException | RuntimeException e) {
+                    out.writeByte(SocialGraphProtocol.ERROR);
+                    out.writeUTF(String.valueOf(e.getMessage()));
+                }
+                out.flush();
+            }
+        } catch (IOException e) {
+            // Client went away
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+    }
+
+    @Override
+    public void close() throws IOException {
+        serverSocket.close();
+        executor.shutdownNow();
+    }
+}
+
+// Client for SocialGraphServer. A connection carries one request at a time, so
+// concurrent callers each borrow their own from a pool of idle connections.
+class RemoteSocialGraphSource implements SocialGraphSource, Closeable {
+    private static final class Connection {
+        final Socket socket;
+        final DataInputStream in;
+        final DataOutputStream out;
+
+        Connection(Socket socket) throws IOException {
+            this.socket = socket;
+            this.in = new DataInputStream(new BufferedInputStream(socket.getInputStream()));
+            this.out = new DataOutputStream(new BufferedOutputStream(socket.getOutputStream()));
+        }
+    }
+
+    private final InetAddress address;
+    private final int port;
+    private final Queue<Connection> idle = new ConcurrentLinkedQueue<>();
+    private volatile boolean closed;
+
+    RemoteSocialGraphSource(InetAddress address, int port) {
+        this.address = address;
+        this.port = port;
+    }
+
+    public ProfilePage fetch(String profileId, String type, int cursor, int limit) throws IOException {
+        Connection connection = borrow();
+        try {
+            connection.out.writeByte(SocialGraphProtocol.FETCH);
+            connection.out.writeUTF(profileId);
+            connection.out.writeUTF(type);
+            connection.out.writeInt(cursor);
+            connection.out.writeInt(limit);
+            connection.out.flush();
+            readStatus(connection);
+            int nextCursor = connection.in.readInt();
+            int size = connection.in.readInt();
+            List<Profile> profiles = new ArrayList<>(size);
+            for (int i = 0; i < size; i++) {
+                profiles.add(SocialGraphProtocol.readProfile(connection.in));
+            }
+            release(connection);
+            return new ProfilePage(profiles, nextCursor);
+        } catch (IOException e) {
+            connection.socket.close();
+            throw e;
+        }
+    }
+
+    public int count(String profileId, String type) throws IOException {
+        Connection connection = borrow();
+        try {
+            connection.out.writeByte(SocialGraphProtocol.COUNT);
+            connection.out.writeUTF(profileId);
+            connection.out.writeUTF(type);
+            connection.out.flush();
+            readStatus(connection);
+            int count = connection.in.readInt();
+            release(connection);
+            return count;
+        } catch (IOException e) {
+            connection.socket.close();
+            throw e;
+        }
+    }
+
+    // Any failure, including one reported by the server, drops the connection
+    private void readStatus(Connection connection) throws IOException {
+        if (connection.in.readByte() == SocialGraphProtocol.ERROR) {
+            throw new IOException("Social graph server: " + connection.in.readUTF());
+        }
+    }
+
+    private Connection borrow() throws IOException {
+        if (closed) {
+            throw new IOException("Source is closed");
+        }
+        Connection connection = idle.poll();
+        if (connection != null) {
+            return connection;
+        }
+        Socket socket = new Socket(address, port);
+        socket.setTcpNoDelay(true);
+        return new Connection(socket);
+    }
+
+    private void release(Connection connection) throws IOException {
+        // Re-checked after adding, in case close() ran in between
+        idle.add(connection);
+        if (closed && idle.remove(connection)) {
+            connection.socket.close();
+        }
+    }
+
+    @Override
+    public void close() throws IOException {
+        closed = true;
+        Connection connection;
+        while ((connection = idle.poll()) != null) {
+            connection.socket.close();
+        }
     }
 }
 
@@ -57,12 +811,347 @@ public class Profile {
     public String getNetwork() {
         return network;
     }
-    
+
+    // For views that keep their fields somewhere else, see ProfileStore
+    protected Profile() {
+    }
+}
+
+// Compact, append-only profile storage. Networks are dictionary encoded and
+// id/name/email live as length-prefixed UTF-8 in a shared chunked byte arena,
+// so a stored profile costs a long and a short plus its bytes. Profiles are
+// handed out as flyweight views that decode on access.
+// Fill from one thread, then share.
+class ProfileStore {
+    private static final int MAX_CHUNK_SIZE = 1 << 20;
+    private static final int MIN_CHUNK_SIZE = 256;
+
+    private final List<String> networks = new ArrayList<>();
+    private final Map<String, Short> networkCodes = new HashMap<>();
+
+    private byte[][] chunks = new byte[0][];
+    private int chunkCount;
+    private int chunkUsed;
+
+    // Per profile: chunk index in the high 32 bits, offset in the low 32 bits
+    private long[] positions = new long[16];
+    private short[] networkColumn = new short[16];
+    private int size;
+
+    static ProfileStore of(List<Profile> profiles) {
+        ProfileStore store = new ProfileStore();
+        for (Profile profile : profiles) {
+            store.add(profile);
+        }
+        return store;
+    }
+
+    int add(Profile profile) {
+        return add(profile.getId(), profile.getName(), profile.getEmail(), profile.getNetwork());
+    }
+
+    int add(String id, String name, String email, String network) {
+        byte[] idBytes = encode(id);
+        byte[] nameBytes = encode(name);
+        byte[] emailBytes = encode(email);
+        int length = encodedSize(idBytes) + encodedSize(nameBytes) + encodedSize(emailBytes);
+
+        if (size == positions.length) {
+            positions = Arrays.copyOf(positions, size * 2);
+            networkColumn = Arrays.copyOf(networkColumn, size * 2);
+        }
+        byte[] chunk = reserve(length);
+        int offset = chunkUsed;
+        chunkUsed = write(chunk, write(chunk, write(chunk, offset, idBytes), nameBytes), emailBytes);
+
+        positions[size] = ((long) (chunkCount - 1) << 32) | offset;
+        networkColumn[size] = networkCode(network);
+        return size++;
+    }
+
+    int size() {
+        return size;
+    }
+
+    Profile get(int index) {
+        Objects.checkIndex(index, size);
+        return new ProfileView(this, index);
+    }
+
+    // Read-only list of views, usable wherever a List<Profile> is expected
+    List<Profile> asList() {
+        return new AbstractList<Profile>() {
+            @Override
+            public Profile get(int index) {
+                return ProfileStore.this.get(index);
+            }
+
+            @Override
+            public int size() {
+                return size;
+            }
+        };
+    }
+
+    String network(int index) {
+        short code = networkColumn[index];
+        return code < 0 ? null : networks.get(code);
+    }
+
+    // field 0 is the id, 1 the name and 2 the email
+    String field(int index, int field) {
+        long position = positions[index];
+        byte[] chunk = chunks[(int) (position >>> 32)];
+        int offset = (int) position;
+        for (int i = 0; ; i++) {
+            int header = 0;
+            int shift = 0;
+            byte b;
+            do {
+                b = chunk[offset++];
+                header |= (b & 0x7F) << shift;
+                shift += 7;
+            } while (b < 0);
+            // header is length + 1, zero marks a null field
+            int length = header - 1;
+            if (i == field) {
+                return length < 0 ? null : new String(chunk, offset, length, StandardCharsets.UTF_8);
+            }
+            offset += Math.max(length, 0);
+        }
+    }
+
+    // Arena bytes in use, excluding the unused tail of the last chunk
+    long arenaBytes() {
+        long total = 0;
+        for (int i = 0; i < chunkCount - 1; i++) {
+            total += chunks[i].length;
+        }
+        return total + chunkUsed;
+    }
+
+    private short networkCode(String network) {
+        if (network == null) {
+            return -1;
+        }
+        Short code = networkCodes.get(network);
+        if (code == null) {
+            if (networks.size() > Short.MAX_VALUE) {
+                throw new IllegalStateException("Too many distinct networks");
+            }
+            code = (short) networks.size();
+            networks.add(network);
+            networkCodes.put(network, code);
+        }
+        return code;
+    }
+
+    // Returns a chunk with room for length bytes at chunkUsed, starting a new one if needed.
+    // Chunks start small so that little stores, like single cached pages, stay little.
+    private byte[] reserve(int length) {
+        if (chunkCount > 0 && chunks[chunkCount - 1].length - chunkUsed >= length) {
+            return chunks[chunkCount - 1];
+        }
+        int chunkSize = chunkCount == 0 ? MIN_CHUNK_SIZE : Math.min(chunks[chunkCount - 1].length * 2, MAX_CHUNK_SIZE);
+        if (chunkCount == chunks.length) {
+            chunks = Arrays.copyOf(chunks, Math.max(4, chunkCount * 2));
+        }
+        byte[] chunk = new byte[Math.max(chunkSize, length)];
+        chunks[chunkCount++] = chunk;
+        chunkUsed = 0;
+        return chunk;
+    }
+
+    private static byte[] encode(String value) {
+        return value == null ? null : value.getBytes(StandardCharsets.UTF_8);
+    }
+
+    private static int encodedSize(byte[] bytes) {
+        int header = bytes == null ? 0 : bytes.length + 1;
+        int size = 1;
+        while ((header >>>= 7) != 0) {
+            size++;
+        }
+        return size + (bytes == null ? 0 : bytes.length);
+    }
+
+    private static int write(byte[] chunk, int offset, byte[] bytes) {
+        int header = bytes == null ? 0 : bytes.length + 1;
+        while ((header & ~0x7F) != 0) {
+            chunk[offset++] = (byte) ((header & 0x7F) | 0x80);
+            header >>>= 7;
+        }
+        chunk[offset++] = (byte) header;
+        if (bytes != null) {
+            System.arraycopy(bytes, 0, chunk, offset, bytes.length);
+            offset += bytes.length;
+        }
+        return offset;
+    }
+}
+
+// Flyweight Profile: just a store reference and a row number
+class ProfileView extends Profile {
+    private final ProfileStore store;
+    private final int index;
+
+    ProfileView(ProfileStore store, int index) {
+        this.store = store;
+        this.index = index;
+    }
+
+    @Override
+    public String getId() {
+        return store.field(index, 0);
+    }
+
+    @Override
+    public String getName() {
+        return store.field(index, 1);
+    }
+
+    @Override
+    public String getEmail() {
+        return store.field(index, 2);
+    }
+
+    @Override
+    public String getNetwork() {
+        return store.network(index);
+    }
+}
+
+// Compares retained heap for plain Profile objects against a ProfileStore.
+// Run with a fixed heap, e.g. -Xms2g -Xmx2g, for stable numbers.
+class ProfileStoreBenchmark {
+    public static void main(String[] args) {
+        int count = args.length > 0 ? Integer.parseInt(args[0]) : 1_000_000;
+
+        long baseline = usedHeap();
+        List<Profile> profiles = new ArrayList<>(count);
+        for (int i = 0; i < count; i++) {
+            profiles.add(newProfile(i));
+        }
+        long objectBytes = usedHeap() - baseline;
+        System.out.printf("Profile objects: %,d bytes, %.1f bytes/profile%n", objectBytes, (double) objectBytes / count);
+
+        baseline = usedHeap();
+        ProfileStore store = new ProfileStore();
+        for (int i = 0; i < count; i++) {
+            store.add(newProfile(i));
+        }
+        long storeBytes = usedHeap() - baseline;
+        System.out.printf("ProfileStore:    %,d bytes, %.1f bytes/profile (arena %,d bytes)%n",
+                storeBytes, (double) storeBytes / count, store.arenaBytes());
+
+        // Keeps both alive past the measurements, and checks the views round trip
+        Profile original = profiles.get(count / 2);
+        Profile view = store.get(count / 2);
+        if (!original.getEmail().equals(view.getEmail()) || !original.getNetwork().equals(view.getNetwork())) {
+            throw new AssertionError("Store returned " + view.getEmail() + " for " + original.getEmail());
+        }
+    }
+
+    // Each record gets its own strings, as it would when parsed from a response
+    private static Profile newProfile(int i) {
+        String id = Integer.toString(i);
+        return new Profile(id, "User " + id, "user" + id + "@example.com", new String("Facebook"));
+    }
+
+    private static long usedHeap() {
+        Runtime runtime = Runtime.getRuntime();
+        for (int i = 0; i < 3; i++) {
+            System.gc();
+        }
+        return runtime.totalMemory() - runtime.freeMemory();
+    }
 }
 
 interface ProfileIterator {
     Profile getNext();
     boolean hasMore();
+    // Position after the last profile returned by getNext
+    ProfileCheckpoint checkpoint();
+}
+
+// Where an iteration stood: the next profile to return and how it was being fetched.
+// pageSize is 0 for iterators that load the whole graph at once.
+class ProfileCheckpoint implements Serializable {
+    private static final long serialVersionUID = 1L;
+
+    private final String profileId;
+    private final String type;
+    private final int pageSize;
+    private final int position;
+
+    ProfileCheckpoint(String profileId, String type, int pageSize, int position) {
+        this.profileId = profileId;
+        this.type = type;
+        this.pageSize = pageSize;
+        this.position = position;
+    }
+
+    public String getProfileId() {
+        return profileId;
+    }
+
+    public String getType() {
+        return type;
+    }
+
+    public int getPageSize() {
+        return pageSize;
+    }
+
+    public int getPosition() {
+        return position;
+    }
+
+    // Same profile, type and paging, whatever the position
+    boolean sameIteration(ProfileCheckpoint other) {
+        return profileId.equals(other.profileId) && type.equals(other.type) && pageSize == other.pageSize;
+    }
+
+    @Override
+    public String toString() {
+        return type + " of " + profileId + " at " + position;
+    }
+}
+
+// Keeps the latest checkpoint of a run in a local file. Saves go through a temporary
+// file and an atomic rename, so a crash mid-save leaves the previous checkpoint intact.
+class CheckpointFile {
+    private final Path path;
+    private final Path temp;
+
+    CheckpointFile(Path path) {
+        this.path = path;
+        this.temp = path.resolveSibling(path.getFileName() + ".tmp");
+    }
+
+    void save(ProfileCheckpoint checkpoint) throws IOException {
+        try (ObjectOutputStream out = new ObjectOutputStream(Files.newOutputStream(temp))) {
+            out.writeObject(checkpoint);
+        }
+        Files.move(temp, path, StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+    }
+
+    // Null when there is nothing to resume
+    ProfileCheckpoint load() throws IOException {
+        // An empty file is a fresh one, e.g. from Files.createTempFile
+        if (!Files.exists(path) || Files.size(path) == 0) {
+            return null;
+        }
+        try (ObjectInputStream in = new ObjectInputStream(Files.newInputStream(path))) {
+            return (ProfileCheckpoint) in.readObject();
+        } catch (ClassNotFoundException e) {
+            throw new IOException("Unreadable checkpoint " + path, e);
+        }
+    }
+
+    void clear() throws IOException {
+        Files.deleteIfExists(path);
+    }
 }
 
 class FacebookIterator implements ProfileIterator {
@@ -72,14 +1161,19 @@ class FacebookIterator implements ProfileIterator {
     private List<Profile> cache;
 
     public FacebookIterator(Facebook facebook, String profileId, String type) {
+        this(facebook, profileId, type, 0);
+    }
+
+    public FacebookIterator(Facebook facebook, String profileId, String type, int startPosition) {
         this.facebook = facebook;
         this.profileId = profileId;
         this.type = type;
+        this.currentPosition = startPosition;
     }
 
     private void lazyInit() {
         if (cache == null) {
-            cache = facebook.socialGraphRequest(profileId, type);
+            cache = facebook.cachedSocialGraph(profileId, type);
         }
     }
 
@@ -94,6 +1188,155 @@ class FacebookIterator implements ProfileIterator {
         lazyInit();
         return currentPosition < cache.size();
     }
+
+    public ProfileCheckpoint checkpoint() {
+        return new ProfileCheckpoint(profileId, type, 0, currentPosition);
+    }
+}
+
+// Fetches the social graph in fixed-size pages and requests the next page in the background
+// while the current one is consumed, so at most two pages are held at a time
+class PagedFacebookIterator implements ProfileIterator {
+    private Facebook facebook;
+    private String profileId, type;
+    private int pageSize;
+    private List<Profile> page;
+    private int currentPosition;
+    // Cursor of the first profile in page
+    private int pageStart;
+    private int nextPageStart;
+    private CompletableFuture<ProfilePage> nextPage;
+    private boolean started;
+
+    public PagedFacebookIterator(Facebook facebook, String profileId, String type, int pageSize) {
+        this(facebook, profileId, type, pageSize, 0);
+    }
+
+    public PagedFacebookIterator(Facebook facebook, String profileId, String type, int pageSize, int startCursor) {
+        if (pageSize <= 0) {
+            throw new IllegalArgumentException("Page size must be positive: " + pageSize);
+        }
+        this.facebook = facebook;
+        this.profileId = profileId;
+        this.type = type;
+        this.pageSize = pageSize;
+        this.pageStart = startCursor;
+    }
+
+    private void fetchAhead(int cursor) {
+        nextPageStart = cursor;
+        nextPage = cursor < 0 ? null : CompletableFuture.supplyAsync(
+                () -> facebook.socialGraphRequest(profileId, type, cursor, pageSize, false), facebook.getExecutor());
+    }
+
+    public Profile getNext() {
+        if (hasMore()) {
+            return page.get(currentPosition++);
+        }
+        return null;
+    }
+
+    public boolean hasMore() {
+        if (!started) {
+            started = true;
+            fetchAhead(pageStart);
+        }
+        while (page == null || currentPosition >= page.size()) {
+            if (nextPage == null) {
+                page = null;
+                return false;
+            }
+            ProfilePage fetched = nextPage.join();
+            page = fetched.profiles;
+            pageStart = nextPageStart;
+            currentPosition = 0;
+            fetchAhead(fetched.nextCursor);
+        }
+        return true;
+    }
+
+    public ProfileCheckpoint checkpoint() {
+        return new ProfileCheckpoint(profileId, type, pageSize, pageStart + currentPosition);
+    }
+}
+
+// Spliterator over a cursor range of a social graph. Splitting hands the first half of the
+// not yet fetched range, aligned to whole pages, to the new spliterator, so every worker
+// fetches its own pages and the size estimates stay exact.
+class ProfileSpliterator implements Spliterator<Profile> {
+    static final int DEFAULT_PAGE_SIZE = 1000;
+
+    private final Facebook facebook;
+    private final String profileId, type;
+    private final int pageSize;
+    private int cursor, end;
+    private List<Profile> page;
+    private int currentPosition;
+
+    ProfileSpliterator(Facebook facebook, String profileId, String type, int pageSize, int cursor, int end) {
+        this(facebook, profileId, type, pageSize, cursor, end, null, 0);
+    }
+
+    private ProfileSpliterator(Facebook facebook, String profileId, String type, int pageSize, int cursor, int end,
+                               List<Profile> page, int currentPosition) {
+        if (pageSize <= 0) {
+            throw new IllegalArgumentException("Page size must be positive: " + pageSize);
+        }
+        this.facebook = facebook;
+        this.profileId = profileId;
+        this.type = type;
+        this.pageSize = pageSize;
+        this.cursor = cursor;
+        this.end = end;
+        this.page = page;
+        this.currentPosition = currentPosition;
+    }
+
+    @Override
+    public boolean tryAdvance(Consumer<? super Profile> action) {
+        if (page == null || currentPosition >= page.size()) {
+            if (cursor >= end) {
+                return false;
+            }
+            page = facebook.socialGraphRequest(profileId, type, cursor, Math.min(pageSize, end - cursor), false).profiles;
+            currentPosition = 0;
+            if (page.isEmpty()) {
+                // The graph shrank since it was counted
+                cursor = end;
+                return false;
+            }
+            cursor += page.size();
+        }
+        action.accept(page.get(currentPosition++));
+        return true;
+    }
+
+    @Override
+    public Spliterator<Profile> trySplit() {
+        int pages = (end - cursor) / pageSize;
+        if (pages < 2) {
+            return null;
+        }
+        int middle = cursor + pages / 2 * pageSize;
+        // The buffered page comes before the split range, so it travels with the prefix
+        ProfileSpliterator prefix = new ProfileSpliterator(facebook, profileId, type, pageSize, cursor, middle,
+                page, currentPosition);
+        cursor = middle;
+        page = null;
+        currentPosition = 0;
+        return prefix;
+    }
+
+    @Override
+    public long estimateSize() {
+        long buffered = page == null ? 0 : page.size() - currentPosition;
+        return buffered + (end - cursor);
+    }
+
+    @Override
+    public int characteristics() {
+        return ORDERED | SIZED | SUBSIZED | NONNULL | IMMUTABLE;
+    }
 }
 
 class SocialSpammer {
@@ -103,6 +1346,396 @@ class SocialSpammer {
             System.out.println("Sending email to " + profile.getEmail() + " with message: " + message);
         }
     }
+
+    // Saves a checkpoint after every checkpointInterval sends and clears it once done.
+    // A rerun resumes from the file, so a crash repeats at most one interval of sends.
+    public void send(SocialNetwork network, ProfileIterator iterator, String message, CheckpointFile checkpoints,
+                     int checkpointInterval) throws IOException {
+        if (checkpointInterval <= 0) {
+            throw new IllegalArgumentException("Checkpoint interval must be positive: " + checkpointInterval);
+        }
+        iterator = resumeIfSaved(network, iterator, checkpoints);
+        int sinceCheckpoint = 0;
+        while (iterator.hasMore()) {
+            Profile profile = iterator.getNext();
+            System.out.println("Sending email to " + profile.getEmail() + " with message: " + message);
+            if (++sinceCheckpoint == checkpointInterval) {
+                checkpoints.save(iterator.checkpoint());
+                sinceCheckpoint = 0;
+            }
+        }
+        checkpoints.clear();
+    }
+
+    public SendMetrics send(ProfileIterator iterator, String message, BulkSender sender) throws InterruptedException {
+        return sender.send(iterator, message);
+    }
+
+    public SendMetrics send(SocialNetwork network, ProfileIterator iterator, String message, BulkSender sender,
+                            CheckpointFile checkpoints, int checkpointInterval)
+            throws InterruptedException, IOException {
+        iterator = resumeIfSaved(network, iterator, checkpoints);
+        return sender.send(iterator, message, checkpoints, checkpointInterval);
+    }
+
+    // A saved checkpoint must come from the same iteration as the one asked for. One left
+    // over from another profile or type is refused rather than followed or overwritten.
+    private static ProfileIterator resumeIfSaved(SocialNetwork network, ProfileIterator iterator,
+                                                 CheckpointFile checkpoints) throws IOException {
+        ProfileCheckpoint saved = checkpoints.load();
+        if (saved == null) {
+            return iterator;
+        }
+        ProfileCheckpoint requested = iterator.checkpoint();
+        if (!saved.sameIteration(requested)) {
+            throw new IllegalStateException("Checkpoint file holds " + saved + ", not " + requested);
+        }
+        return network.resume(saved);
+    }
+}
+
+interface MailTransport {
+    // Sends one message to a batch of recipients that share a domain
+    void send(List<String> recipients, String message) throws IOException;
+}
+
+// Stand-in mail server: waits a simulated latency per send and fails a fraction of them
+class FakeMailSink implements MailTransport {
+    private final long latencyMillis;
+    private final double failureRate;
+    private final Random random;
+    private final AtomicLong delivered = new AtomicLong();
+
+    FakeMailSink(long latencyMillis, double failureRate, long seed) {
+        this.latencyMillis = latencyMillis;
+        this.failureRate = failureRate;
+        this.random = new Random(seed);
+    }
+
+    public void send(List<String> recipients, String message) throws IOException {
+        try {
+            Thread.sleep(latencyMillis);
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new IOException("Interrupted while sending", e);
+        }
+        boolean fail;
+        synchronized (random) {
+            fail = random.nextDouble() < failureRate;
+        }
+        if (fail) {
+            throw new IOException("Simulated failure sending to " + recipients.size() + " recipients");
+        }
+        delivered.addAndGet(recipients.size());
+    }
+
+    long getDelivered() {
+        return delivered.get();
+    }
+}
+
+class SendMetrics {
+    final long sends, recipients, retries, failedSends, failedRecipients, elapsedNanos;
+    final long p50LatencyNanos, p99LatencyNanos;
+
+    SendMetrics(long sends, long recipients, long retries, long failedSends, long failedRecipients,
+                long elapsedNanos, long p50LatencyNanos, long p99LatencyNanos) {
+        this.sends = sends;
+        this.recipients = recipients;
+        this.retries = retries;
+        this.failedSends = failedSends;
+        this.failedRecipients = failedRecipients;
+        this.elapsedNanos = elapsedNanos;
+        this.p50LatencyNanos = p50LatencyNanos;
+        this.p99LatencyNanos = p99LatencyNanos;
+    }
+
+    double recipientsPerSecond() {
+        return elapsedNanos == 0 ? 0 : recipients * 1e9 / elapsedNanos;
+    }
+
+    @Override
+    public String toString() {
+        return String.format("sends=%d, recipients=%d, retries=%d, failedSends=%d, failedRecipients=%d, "
+                        + "elapsed=%.1f ms, throughput=%.0f recipients/s, p50=%.2f ms, p99=%.2f ms",
+                sends, recipients, retries, failedSends, failedRecipients, elapsedNanos / 1e6,
+                recipientsPerSecond(), p50LatencyNanos / 1e6, p99LatencyNanos / 1e6);
+    }
+}
+
+// Sends to everyone an iterator yields with a bounded number of sends in flight.
+// Recipients are batched per email domain, every domain is held to its own rate,
+// and failed sends are retried with exponential backoff.
+// A batch waits for its domain's slot on a timer and only takes a sender thread once the
+// slot is due, so a slow domain never holds up sends to the others.
+// JDK 17 has no virtual threads, so sends run on a fixed pool sized to the concurrency limit.
+class BulkSender {
+    // Batches waiting for their domain slot, per concurrent send, before the producer blocks
+    private static final int QUEUED_PER_SEND = 8;
+
+    private final MailTransport transport;
+    private final int maxConcurrentSends;
+    private final int maxQueuedBatches;
+    private final int batchSize;
+    private final long domainIntervalNanos;
+    private final int maxRetries;
+    private final long initialBackoffMillis;
+    // Earliest time the next send to each domain may start
+    private final Map<String, Long> nextDomainSlot = new ConcurrentHashMap<>();
+
+    // State of one send() call, shared by all of its batches
+    private static final class Run {
+        final ScheduledExecutorService executor;
+        // One permit per batch not yet sent or given up on
+        final Semaphore queued;
+        final String message;
+        final AtomicLong sends = new AtomicLong(), recipients = new AtomicLong(), retries = new AtomicLong();
+        final AtomicLong failedSends = new AtomicLong(), failedRecipients = new AtomicLong();
+        final List<Long> latencies = new ArrayList<>();
+
+        Run(ScheduledExecutorService executor, int maxQueuedBatches, String message) {
+            this.executor = executor;
+            this.queued = new Semaphore(maxQueuedBatches);
+            this.message = message;
+        }
+
+        void failed(List<String> batch) {
+            failedSends.incrementAndGet();
+            failedRecipients.addAndGet(batch.size());
+        }
+    }
+
+    BulkSender(MailTransport transport, int maxConcurrentSends, int batchSize, double sendsPerSecondPerDomain,
+               int maxRetries, long initialBackoffMillis) {
+        this.transport = transport;
+        this.maxConcurrentSends = maxConcurrentSends;
+        this.maxQueuedBatches = maxConcurrentSends * QUEUED_PER_SEND;
+        this.batchSize = batchSize;
+        this.domainIntervalNanos = (long) (1e9 / sendsPerSecondPerDomain);
+        this.maxRetries = maxRetries;
+        this.initialBackoffMillis = initialBackoffMillis;
+    }
+
+    SendMetrics send(ProfileIterator iterator, String message) throws InterruptedException {
+        try {
+            return send(iterator, message, null, 0);
+        } catch (IOException e) {
+            // Only checkpoint saves throw this
+            throw new IllegalStateException(e);
+        }
+    }
+
+    // With checkpoints, every checkpointInterval profiles the partial batches are flushed and
+    // in-flight sends drained before the iterator position is saved, so the saved position
+    // never runs ahead of sends still pending. Batches that failed after all retries are
+    // passed too; they are only reported in failedSends and failedRecipients.
+    SendMetrics send(ProfileIterator iterator, String message, CheckpointFile checkpoints, int checkpointInterval)
+            throws InterruptedException, IOException {
+        if (checkpoints != null && checkpointInterval <= 0) {
+            throw new IllegalArgumentException("Checkpoint interval must be positive: " + checkpointInterval);
+        }
+        ScheduledExecutorService executor = Executors.newScheduledThreadPool(maxConcurrentSends, runnable -> {
+            Thread thread = new Thread(runnable, "bulk-sender");
+            thread.setDaemon(true);
+            return thread;
+        });
+        Run run = new Run(executor, maxQueuedBatches, message);
+        Map<String, List<String>> batches = new HashMap<>();
+        long start = System.nanoTime();
+        int sinceCheckpoint = 0;
+
+        try {
+            while (iterator.hasMore()) {
+                String email = iterator.getNext().getEmail();
+                String domain = domainOf(email);
+                List<String> batch = batches.computeIfAbsent(domain, d -> new ArrayList<>());
+                batch.add(email);
+                if (batch.size() == batchSize) {
+                    batches.remove(domain);
+                    dispatch(run, domain, batch);
+                }
+                if (checkpoints != null && ++sinceCheckpoint == checkpointInterval) {
+                    for (Map.Entry<String, List<String>> partial : batches.entrySet()) {
+                        dispatch(run, partial.getKey(), partial.getValue());
+                    }
+                    batches.clear();
+                    drain(run);
+                    checkpoints.save(iterator.checkpoint());
+                    sinceCheckpoint = 0;
+                }
+            }
+            for (Map.Entry<String, List<String>> batch : batches.entrySet()) {
+                dispatch(run, batch.getKey(), batch.getValue());
+            }
+            // Retries are scheduled by the sends themselves, so the pool can only shut down once all are done
+            drain(run);
+        } finally {
+            executor.shutdown();
+            executor.awaitTermination(Long.MAX_VALUE, TimeUnit.NANOSECONDS);
+        }
+        if (checkpoints != null) {
+            checkpoints.clear();
+        }
+
+        long elapsed = System.nanoTime() - start;
+        long[] sorted;
+        synchronized (run.latencies) {
+            sorted = run.latencies.stream().mapToLong(Long::longValue).toArray();
+        }
+        Arrays.sort(sorted);
+        return new SendMetrics(run.sends.get(), run.recipients.get(), run.retries.get(), run.failedSends.get(),
+                run.failedRecipients.get(), elapsed, percentile(sorted, 0.50), percentile(sorted, 0.99));
+    }
+
+    private void dispatch(Run run, String domain, List<String> batch) throws InterruptedException {
+        // Blocks the producer once enough batches are queued, so they never pile up in memory
+        run.queued.acquire();
+        schedule(run, domain, batch, 0, initialBackoffMillis, System.nanoTime());
+    }
+
+    // Waits until every dispatched batch has been sent or given up on
+    private void drain(Run run) throws InterruptedException {
+        run.queued.acquire(maxQueuedBatches);
+        run.queued.release(maxQueuedBatches);
+    }
+
+    // Queues the attempt for the domain's next send slot no earlier than notBefore
+    private void schedule(Run run, String domain, List<String> batch, int attempt, long backoff, long notBefore) {
+        long delay = reserveDomainSlot(domain, notBefore) - System.nanoTime();
+        try {
+            run.executor.schedule(() -> attempt(run, domain, batch, attempt, backoff),
+                    Math.max(delay, 0), TimeUnit.NANOSECONDS);
+        } catch (RejectedExecutionException e) {
+            // The send was abandoned and its pool shut down
+            run.failed(batch);
+            run.queued.release();
+        }
+    }
+
+    private void attempt(Run run, String domain, List<String> batch, int attempt, long backoff) {
+        boolean retrying = false;
+        try {
+            long sendStart = System.nanoTime();
+            transport.send(batch, run.message);
+            synchronized (run.latencies) {
+                run.latencies.add(System.nanoTime() - sendStart);
+            }
+            run.sends.incrementAndGet();
+            run.recipients.addAndGet(batch.size());
+        } catch (IOException | RuntimeException e) {
+            if (attempt == maxRetries) {
+                run.failed(batch);
+            } else {
+                run.retries.incrementAndGet();
+                retrying = true;
+                schedule(run, domain, batch, attempt + 1, backoff * 2,
+                        System.nanoTime() + TimeUnit.MILLISECONDS.toNanos(backoff));
+            }
+        } catch (Error e) {
+            run.failed(batch);
+            throw e;
+        } finally {
+            // A retry keeps the batch's permit until it is resolved
+            if (!retrying) {
+                run.queued.release();
+            }
+        }
+    }
+
+    // Reserves the domain's next send slot starting no earlier than notBefore, returns its start
+    private long reserveDomainSlot(String domain, long notBefore) {
+        long[] slot = new long[1];
+        nextDomainSlot.compute(domain, (d, next) -> {
+            slot[0] = next == null ? notBefore : Math.max(notBefore, next);
+            return slot[0] + domainIntervalNanos;
+        });
+        return slot[0];
+    }
+
+    private static String domainOf(String email) {
+        int at = email.lastIndexOf('@');
+        return at < 0 ? "" : email.substring(at + 1).toLowerCase();
+    }
+
+    private static long percentile(long[] sorted, double fraction) {
+        if (sorted.length == 0) {
+            return 0;
+        }
+        return sorted[(int) Math.min(sorted.length - 1, Math.floor(fraction * sorted.length))];
+    }
+}
+
+// End-to-end iterator and spammer throughput against a SyntheticSocialGraph, served in
+// process and over loopback. Every scenario gets a fresh Facebook, so all pages miss the cache.
+// Args: graph size, profiles to walk, injected latency in milliseconds.
+class SocialGraphBenchmark {
+    private interface Walk {
+        long walk(Facebook facebook, String profileId) throws Exception;
+    }
+
+    public static void main(String[] args) throws Exception {
+        int graphSize = args.length > 0 ? Integer.parseInt(args[0]) : 1_000_000;
+        int walks = args.length > 1 ? Integer.parseInt(args[1]) : 500;
+        long latencyMillis = args.length > 2 ? Long.parseLong(args[2]) : 1;
+        SyntheticSocialGraph graph = new SyntheticSocialGraph(graphSize, 20, 2.5, 42);
+
+        run("in-process", graph, walks);
+        run("in-process +" + latencyMillis + "ms", new DelayedSocialGraphSource(graph, latencyMillis), walks);
+        try (SocialGraphServer server = new SocialGraphServer(graph, 0);
+             RemoteSocialGraphSource remote = new RemoteSocialGraphSource(InetAddress.getLoopbackAddress(), server.getPort())) {
+            run("loopback", remote, walks);
+        }
+        try (SocialGraphServer server = new SocialGraphServer(graph, latencyMillis);
+             RemoteSocialGraphSource remote = new RemoteSocialGraphSource(InetAddress.getLoopbackAddress(), server.getPort())) {
+            run("loopback +" + latencyMillis + "ms", remote, walks);
+        }
+    }
+
+    private static void run(String sourceName, SocialGraphSource source, int walks) throws Exception {
+        Walk iterator = (facebook, id) -> drain(facebook.createFriendsIterator(id));
+        Walk paged = (facebook, id) -> drain(facebook.createFriendsIterator(id, 1000));
+        // The filter keeps count() from short-circuiting on the known size without fetching
+        Walk parallelStream = (facebook, id) -> facebook.friendsStream(id).parallel()
+                .filter(p -> p.getEmail() != null).count();
+        Walk spammer = (facebook, id) -> new SocialSpammer().send(facebook.createFriendsIterator(id, 1000), "Benchmark",
+                new BulkSender(new FakeMailSink(0, 0, 42), 16, 100, 1e9, 0, 1)).recipients;
+
+        // Warm up every code path before measuring
+        for (Walk walk : new Walk[]{iterator, paged, parallelStream, spammer}) {
+            walk(source, walk, Math.max(1, walks / 10));
+        }
+        report(sourceName, "iterator", source, iterator, walks);
+        report(sourceName, "paged iterator", source, paged, walks);
+        report(sourceName, "parallel stream", source, parallelStream, walks);
+        report(sourceName, "bulk spammer", source, spammer, walks);
+    }
+
+    private static void report(String sourceName, String walkName, SocialGraphSource source, Walk walk, int walks)
+            throws Exception {
+        long start = System.nanoTime();
+        long profiles = walk(source, walk, walks);
+        long elapsed = System.nanoTime() - start;
+        System.out.printf("%-18s %-16s %,10d profiles %9.1f ms %,12.0f profiles/s%n",
+                sourceName, walkName, profiles, elapsed / 1e6, profiles * 1e9 / elapsed);
+    }
+
+    private static long walk(SocialGraphSource source, Walk walk, int walks) throws Exception {
+        Facebook facebook = new Facebook(source);
+        long profiles = 0;
+        for (int i = 0; i < walks; i++) {
+            profiles += walk.walk(facebook, Integer.toString(i));
+        }
+        return profiles;
+    }
+
+    private static long drain(ProfileIterator iterator) {
+        long count = 0;
+        while (iterator.hasMore()) {
+            iterator.getNext();
+            count++;
+        }
+        return count;
+    }
 }
 
 class Application {
@@ -125,7 +1758,7 @@ class Application {
         spammer.send(iterator, "Very important message");
     }
 
-    public static void main(String[] args) {
+    public static void main(String[] args) throws InterruptedException, IOException {
         Application app = new Application();
         app.config();
         Profile profile = new Profile("1", "John Doe", "john.doe@example.com", "Facebook");
@@ -133,5 +1766,21 @@ class Application {
         app.sendSpamToFriends(profile);
         System.out.println("Sending spam to coworkers...");
         app.sendSpamToCoworkers(profile);
+        System.out.println("Sending spam to friends page by page...");
+        new SocialSpammer().send(new Facebook().createFriendsIterator(profile.getId(), 1), "Very important message");
+        System.out.println("Sending spam to friends with checkpoints...");
+        Path checkpointPath = Files.createTempFile("spam-friends", ".ckpt");
+        checkpointPath.toFile().deleteOnExit();
+        CheckpointFile checkpoints = new CheckpointFile(checkpointPath);
+        new SocialSpammer().send(app.network, app.network.createFriendsIterator(profile.getId()),
+                "Very important message", checkpoints, 1);
+
+        FakeMailSink sink = new FakeMailSink(5, 0.1, 42);
+        BulkSender sender = new BulkSender(sink, 16, 50, 200, 3, 10);
+        SendMetrics metrics = new SocialSpammer().send(app.network.createFriendsIterator(profile.getId()),
+                "Very important message", sender);
+        System.out.println("Bulk send: " + metrics);
+        System.out.println("Friends on example.com: "
+                + new Facebook().friendsStream(profile.getId()).parallel().filter(p -> p.getEmail().endsWith("@example.com")).count());
     }
 }
\ No newline at end of file
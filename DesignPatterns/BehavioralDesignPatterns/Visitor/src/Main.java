@@ -1,13 +1,88 @@
 package DesignPatterns.BehavioralDesignPatterns.Visitor.src;
 
-interface Shape {
+import java.io.IOException;
+import java.io.UncheckedIOException;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.IntBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.Channels;
+import java.nio.channels.FileChannel;
+import java.nio.channels.WritableByteChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.BitSet;
+import java.util.Collections;
+import java.util.List;
+import java.util.Random;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.ForkJoinTask;
+import java.util.concurrent.RecursiveTask;
+import java.util.function.LongSupplier;
+import java.util.function.Supplier;
+
+// Sealed, so the set of shapes is closed and ShapeDispatch can switch over it
+sealed interface Shape permits TrackedShape {
     void move(int x, int y);
     void draw();
     void accept(Visitor v);
 }
 
-class Dot implements Shape {
+// Shape that reports its changes to the index of the last binary export it was written to
+abstract sealed class TrackedShape implements Shape permits Dot, Circle, Rectangle, CompoundShape {
+    // Class id for ShapeDispatch.table, fixed per subclass
+    final int kind;
+    private BinaryExportIndex exportIndex;
+    private int exportPosition = -1;
+
+    TrackedShape(int kind) {
+        this.kind = kind;
+    }
+
+    void track(BinaryExportIndex index, int position) {
+        exportIndex = index;
+        exportPosition = position;
+    }
+
+    int getExportPosition() {
+        return exportPosition;
+    }
+
+    boolean isTrackedBy(BinaryExportIndex index) {
+        return exportIndex == index && exportPosition >= 0;
+    }
+
+    protected void changed() {
+        if (exportIndex != null) {
+            exportIndex.markChanged(exportPosition);
+        }
+    }
+
+    protected void structureChanged() {
+        if (exportIndex != null) {
+            exportIndex.markStructureChanged();
+        }
+    }
+}
+
+final class Dot extends TrackedShape {
+    int id, x, y;
+
+    Dot(int id, int x, int y) {
+        super(ShapeDispatch.DOT);
+        this.id = id;
+        this.x = x;
+        this.y = y;
+    }
+
     public void move(int x, int y) {
+        this.x = x;
+        this.y = y;
+        changed();
         System.out.println("Dot moved to " + x + ", " + y);
     }
 
@@ -20,8 +95,21 @@ class Dot implements Shape {
     }
 }
 
-class Circle implements Shape {
+final class Circle extends TrackedShape {
+    int id, x, y, radius;
+
+    Circle(int id, int x, int y, int radius) {
+        super(ShapeDispatch.CIRCLE);
+        this.id = id;
+        this.x = x;
+        this.y = y;
+        this.radius = radius;
+    }
+
     public void move(int x, int y) {
+        this.x = x;
+        this.y = y;
+        changed();
         System.out.println("Circle moved to " + x + ", " + y);
     }
 
@@ -34,8 +122,22 @@ class Circle implements Shape {
     }
 }
 
-class Rectangle implements Shape {
+final class Rectangle extends TrackedShape {
+    int id, x, y, width, height;
+
+    Rectangle(int id, int x, int y, int width, int height) {
+        super(ShapeDispatch.RECTANGLE);
+        this.id = id;
+        this.x = x;
+        this.y = y;
+        this.width = width;
+        this.height = height;
+    }
+
     public void move(int x, int y) {
+        this.x = x;
+        this.y = y;
+        changed();
         System.out.println("Rectangle moved to " + x + ", " + y);
     }
 
@@ -48,7 +150,33 @@ class Rectangle implements Shape {
     }
 }
 
-class CompoundShape implements Shape {
+final class CompoundShape extends TrackedShape {
+    int id;
+    // Private so every change goes through add/remove and is seen by the export index
+    private final List<Shape> children = new ArrayList<>();
+
+    CompoundShape(int id) {
+        super(ShapeDispatch.COMPOUND);
+        this.id = id;
+    }
+
+    void add(Shape child) {
+        children.add(child);
+        structureChanged();
+    }
+
+    boolean remove(Shape child) {
+        boolean removed = children.remove(child);
+        if (removed) {
+            structureChanged();
+        }
+        return removed;
+    }
+
+    List<Shape> getChildren() {
+        return Collections.unmodifiableList(children);
+    }
+
     public void move(int x, int y) {
         System.out.println("CompoundShape moved to " + x + ", " + y);
     }
@@ -69,39 +197,1035 @@ interface Visitor {
     void visitCompoundShape(CompoundShape cs);
 }
 
+// Alternatives to accept() double dispatch for hot loops over shapes.
+// Both call the visitor directly, so the loop has no megamorphic accept() call site.
+final class ShapeDispatch {
+    static final int DOT = 0, CIRCLE = 1, RECTANGLE = 2, COMPOUND = 3;
+
+    private ShapeDispatch() {
+    }
+
+    // Type switch over the sealed hierarchy. Switch patterns are still a preview feature on
+    // JDK 17, so this is written as an instanceof chain.
+    static void typeSwitch(Shape shape, Visitor v) {
+        if (shape instanceof Dot d) {
+            v.visitDot(d);
+        } else if (shape instanceof Circle c) {
+            v.visitCircle(c);
+        } else if (shape instanceof Rectangle r) {
+            v.visitRectangle(r);
+        } else if (shape instanceof CompoundShape cs) {
+            v.visitCompoundShape(cs);
+        }
+    }
+
+    // Switch on the class id every shape carries, so dispatch is one field load
+    static void table(Shape shape, Visitor v) {
+        switch (((TrackedShape) shape).kind) {
+            case DOT:
+                v.visitDot((Dot) shape);
+                break;
+            case CIRCLE:
+                v.visitCircle((Circle) shape);
+                break;
+            case RECTANGLE:
+                v.visitRectangle((Rectangle) shape);
+                break;
+            default:
+                v.visitCompoundShape((CompoundShape) shape);
+                break;
+        }
+    }
+}
+
+// Visitor whose work can be split over slices of the shapes, each slice getting its own instance
+interface MergeableVisitor<R> extends Visitor {
+    // Partial result for the shapes this instance visited
+    R result();
+
+    // Merges the results of two adjacent slices, left before right, so merged output keeps shape order
+    R combine(R left, R right);
+}
+
+class ShapeStatistics {
+    final long dots, circles, rectangles, compounds;
+    final double area;
+    final long minX, minY, maxX, maxY;
+
+    ShapeStatistics(long dots, long circles, long rectangles, long compounds, double area,
+                    long minX, long minY, long maxX, long maxY) {
+        this.dots = dots;
+        this.circles = circles;
+        this.rectangles = rectangles;
+        this.compounds = compounds;
+        this.area = area;
+        this.minX = minX;
+        this.minY = minY;
+        this.maxX = maxX;
+        this.maxY = maxY;
+    }
+
+    ShapeStatistics merge(ShapeStatistics other) {
+        return new ShapeStatistics(dots + other.dots, circles + other.circles, rectangles + other.rectangles,
+                compounds + other.compounds, area + other.area, Math.min(minX, other.minX), Math.min(minY, other.minY),
+                Math.max(maxX, other.maxX), Math.max(maxY, other.maxY));
+    }
+
+    @Override
+    public String toString() {
+        return "dots=" + dots + ", circles=" + circles + ", rectangles=" + rectangles + ", compounds=" + compounds
+                + ", area=" + area + ", bounds=(" + minX + ", " + minY + ") - (" + maxX + ", " + maxY + ")";
+    }
+}
+
+// Counts shapes, sums their area and tracks the overall bounding box
+class StatisticsVisitor implements MergeableVisitor<ShapeStatistics> {
+    private long dots, circles, rectangles, compounds;
+    private double area;
+    private long minX = Long.MAX_VALUE, minY = Long.MAX_VALUE, maxX = Long.MIN_VALUE, maxY = Long.MIN_VALUE;
+
+    public void visitDot(Dot d) {
+        dots++;
+        include(d.x, d.y, d.x, d.y);
+    }
+
+    public void visitCircle(Circle c) {
+        circles++;
+        area += Math.PI * c.radius * c.radius;
+        include((long) c.x - c.radius, (long) c.y - c.radius, (long) c.x + c.radius, (long) c.y + c.radius);
+    }
+
+    public void visitRectangle(Rectangle r) {
+        rectangles++;
+        area += (double) r.width * r.height;
+        include(r.x, r.y, (long) r.x + r.width, (long) r.y + r.height);
+    }
+
+    public void visitCompoundShape(CompoundShape cs) {
+        compounds++;
+        for (Shape child : cs.getChildren()) {
+            child.accept(this);
+        }
+    }
+
+    private void include(long fromX, long fromY, long toX, long toY) {
+        minX = Math.min(minX, fromX);
+        minY = Math.min(minY, fromY);
+        maxX = Math.max(maxX, toX);
+        maxY = Math.max(maxY, toY);
+    }
+
+    public ShapeStatistics result() {
+        return new ShapeStatistics(dots, circles, rectangles, compounds, area, minX, minY, maxX, maxY);
+    }
+
+    public ShapeStatistics combine(ShapeStatistics left, ShapeStatistics right) {
+        return left.merge(right);
+    }
+}
+
+// Streams XML into one reusable direct buffer that is flushed to the channel whenever it fills up.
+// Markup is pre-encoded and numbers are written digit by digit, so no Strings are built per shape.
 class XMLExportVisitor implements Visitor {
+    private static final byte[] HEADER = ascii("<?xml version=\"1.0\" encoding=\"UTF-8\"?>\n<shapes>\n");
+    private static final byte[] FOOTER = ascii("</shapes>\n");
+    private static final byte[] DOT = ascii("<dot");
+    private static final byte[] CIRCLE = ascii("<circle");
+    private static final byte[] RECTANGLE = ascii("<rectangle");
+    private static final byte[] COMPOUND = ascii("<compound");
+    private static final byte[] COMPOUND_END = ascii("</compound>\n");
+    private static final byte[] ID = ascii(" id=\"");
+    private static final byte[] X = ascii(" x=\"");
+    private static final byte[] Y = ascii(" y=\"");
+    private static final byte[] RADIUS = ascii(" radius=\"");
+    private static final byte[] WIDTH = ascii(" width=\"");
+    private static final byte[] HEIGHT = ascii(" height=\"");
+    private static final byte[] EMPTY_END = ascii("/>\n");
+    private static final byte[] OPEN_END = ascii(">\n");
+    // Smallest buffer that still fits the longest single write, the document header
+    private static final int MAX_WRITE = 64;
+
+    private final WritableByteChannel channel;
+    private ByteBuffer buffer;
+    private int depth = 1;
+
+    XMLExportVisitor(WritableByteChannel channel) {
+        this(channel, 1 << 16);
+    }
+
+    XMLExportVisitor(WritableByteChannel channel, int bufferSize) {
+        this.channel = channel;
+        this.buffer = ByteBuffer.allocateDirect(Math.max(bufferSize, MAX_WRITE));
+    }
+
+    // For subclasses that keep the output instead of writing it to a channel
+    XMLExportVisitor(ByteBuffer buffer) {
+        this.channel = null;
+        this.buffer = buffer;
+    }
+
+    private static byte[] ascii(String text) {
+        return text.getBytes(StandardCharsets.US_ASCII);
+    }
+
+    void startDocument() {
+        write(HEADER);
+    }
+
+    void endDocument() {
+        write(FOOTER);
+        flush();
+    }
+
+    public void visitDot(Dot d) {
+        open(DOT, d.id);
+        attribute(X, d.x);
+        attribute(Y, d.y);
+        write(EMPTY_END);
+    }
+
+    public void visitCircle(Circle c) {
+        open(CIRCLE, c.id);
+        attribute(X, c.x);
+        attribute(Y, c.y);
+        attribute(RADIUS, c.radius);
+        write(EMPTY_END);
+    }
+
+    public void visitRectangle(Rectangle r) {
+        open(RECTANGLE, r.id);
+        attribute(X, r.x);
+        attribute(Y, r.y);
+        attribute(WIDTH, r.width);
+        attribute(HEIGHT, r.height);
+        write(EMPTY_END);
+    }
+
+    public void visitCompoundShape(CompoundShape cs) {
+        open(COMPOUND, cs.id);
+        write(OPEN_END);
+        depth++;
+        for (Shape child : cs.getChildren()) {
+            child.accept(this);
+        }
+        depth--;
+        indent();
+        write(COMPOUND_END);
+    }
+
+    private void open(byte[] tag, int id) {
+        indent();
+        write(tag);
+        attribute(ID, id);
+    }
+
+    private void indent() {
+        for (int i = 0; i < depth; i++) {
+            ensureRemaining(2);
+            buffer.put((byte) ' ').put((byte) ' ');
+        }
+    }
+
+    private void attribute(byte[] name, int value) {
+        ensureRemaining(name.length + 12);
+        buffer.put(name);
+        putInt(value);
+        buffer.put((byte) '"');
+    }
+
+    private void putInt(int value) {
+        long remaining = value;
+        if (remaining < 0) {
+            buffer.put((byte) '-');
+            remaining = -remaining;
+        }
+        long divisor = 1;
+        while (divisor * 10 <= remaining) {
+            divisor *= 10;
+        }
+        for (; divisor > 0; divisor /= 10) {
+            buffer.put((byte) ('0' + remaining / divisor % 10));
+        }
+    }
+
+    private void write(byte[] bytes) {
+        ensureRemaining(bytes.length);
+        buffer.put(bytes);
+    }
+
+    private void ensureRemaining(int bytes) {
+        if (buffer.remaining() < bytes) {
+            flush();
+        }
+    }
+
+    // Hands the filled buffer over and continues in the given one
+    ByteBuffer replaceBuffer(ByteBuffer next) {
+        ByteBuffer filled = buffer;
+        buffer = next;
+        return filled;
+    }
+
+    void flush() {
+        try {
+            buffer.flip();
+            while (buffer.hasRemaining()) {
+                channel.write(buffer);
+            }
+            buffer.clear();
+        } catch (IOException e) {
+            throw new UncheckedIOException(e);
+        }
+    }
+}
+
+// Columnar binary layout of an export, little-endian:
+// header (magic, version, shape count, top-level shape count), then one column per field with a
+// value for every shape in preorder: kind bytes padded to 4, then id, x, y, a and b ints.
+// a is the radius, the width or a compound's child count; b is the height.
+class BinaryShapeFormat {
+    static final int MAGIC = 0x50485342; // "BSHP"
+    static final int VERSION = 1;
+    static final int HEADER_BYTES = 16;
+    static final byte DOT = 0, CIRCLE = 1, RECTANGLE = 2, COMPOUND = 3;
+    static final int INT_COLUMNS = 5;
+    static final int ID = 0, X = 1, Y = 2, A = 3, B = 4;
+
+    static long kindsOffset() {
+        return HEADER_BYTES;
+    }
+
+    static long columnOffset(int count, int column) {
+        long kindsBytes = ((long) count + 3) / 4 * 4;
+        return HEADER_BYTES + kindsBytes + (long) column * count * 4;
+    }
+
+    static long fileSize(int count) {
+        return columnOffset(count, INT_COLUMNS);
+    }
+}
+
+// Writes shapes in preorder straight into their column positions in the file,
+// through one small buffer per column, so memory stays constant for any number of shapes
+class BinaryExportVisitor implements Visitor {
+    private static class Column {
+        final ByteBuffer buffer;
+        long position;
+
+        Column(long position, int bufferSize) {
+            this.position = position;
+            this.buffer = ByteBuffer.allocateDirect(bufferSize).order(ByteOrder.LITTLE_ENDIAN);
+        }
+    }
+
+    private final FileChannel channel;
+    private final int count;
+    private final BinaryExportIndex index;
+    private final Column kinds;
+    private final Column[] columns = new Column[BinaryShapeFormat.INT_COLUMNS];
+    private int written;
+
+    // The count must be the number of shapes the visitor will see, compounds' children included
+    BinaryExportVisitor(FileChannel channel, int count, int topLevelCount) {
+        this(channel, count, topLevelCount, null);
+    }
+
+    // With an index, every shape is registered at its position so later changes can be patched
+    BinaryExportVisitor(FileChannel channel, int count, int topLevelCount, BinaryExportIndex index) {
+        this.channel = channel;
+        this.count = count;
+        this.index = index;
+        kinds = new Column(BinaryShapeFormat.kindsOffset(), 1 << 13);
+        for (int i = 0; i < columns.length; i++) {
+            columns[i] = new Column(BinaryShapeFormat.columnOffset(count, i), 1 << 13);
+        }
+        ByteBuffer header = ByteBuffer.allocate(BinaryShapeFormat.HEADER_BYTES).order(ByteOrder.LITTLE_ENDIAN);
+        header.putInt(BinaryShapeFormat.MAGIC).putInt(BinaryShapeFormat.VERSION).putInt(count).putInt(topLevelCount).flip();
+        write(header, 0);
+    }
+
+    public void visitDot(Dot d) {
+        record(d, BinaryShapeFormat.DOT, d.id, d.x, d.y, 0, 0);
+    }
+
+    public void visitCircle(Circle c) {
+        record(c, BinaryShapeFormat.CIRCLE, c.id, c.x, c.y, c.radius, 0);
+    }
+
+    public void visitRectangle(Rectangle r) {
+        record(r, BinaryShapeFormat.RECTANGLE, r.id, r.x, r.y, r.width, r.height);
+    }
+
+    public void visitCompoundShape(CompoundShape cs) {
+        record(cs, BinaryShapeFormat.COMPOUND, cs.id, 0, 0, cs.getChildren().size(), 0);
+        for (Shape child : cs.getChildren()) {
+            child.accept(this);
+        }
+    }
+
+    private void record(TrackedShape shape, byte kind, int id, int x, int y, int a, int b) {
+        if (written == count) {
+            throw new IllegalStateException("More shapes than the " + count + " announced");
+        }
+        if (index != null) {
+            index.register(shape, written);
+        }
+        written++;
+        put(kinds, kind);
+        put(columns[BinaryShapeFormat.ID], id);
+        put(columns[BinaryShapeFormat.X], x);
+        put(columns[BinaryShapeFormat.Y], y);
+        put(columns[BinaryShapeFormat.A], a);
+        put(columns[BinaryShapeFormat.B], b);
+    }
+
+    private void put(Column column, byte value) {
+        if (!column.buffer.hasRemaining()) {
+            flush(column);
+        }
+        column.buffer.put(value);
+    }
+
+    private void put(Column column, int value) {
+        if (column.buffer.remaining() < 4) {
+            flush(column);
+        }
+        column.buffer.putInt(value);
+    }
+
+    private void flush(Column column) {
+        column.buffer.flip();
+        column.position += write(column.buffer, column.position);
+        column.buffer.clear();
+    }
+
+    private int write(ByteBuffer buffer, long position) {
+        try {
+            int total = 0;
+            while (buffer.hasRemaining()) {
+                total += channel.write(buffer, position + total);
+            }
+            return total;
+        } catch (IOException e) {
+            throw new UncheckedIOException(e);
+        }
+    }
+
+    void finish() {
+        if (written != count) {
+            throw new IllegalStateException("Visited " + written + " shapes but " + count + " were announced");
+        }
+        flush(kinds);
+        for (Column column : columns) {
+            flush(column);
+        }
+        // Pads the kinds column so the int columns stay aligned even when nothing else is written
+        try {
+            if (channel.size() < BinaryShapeFormat.fileSize(count)) {
+                write(ByteBuffer.allocate(1), BinaryShapeFormat.fileSize(count) - 1);
+            }
+        } catch (IOException e) {
+            throw new UncheckedIOException(e);
+        }
+    }
+}
+
+// Remembers which shape sits at which preorder position of the last binary export,
+// with a dirty bit per position, so the export can be patched in place
+class BinaryExportIndex {
+    final Path file;
+    final Shape[] topLevel;
+    // Copy of the top-level references as exported, to catch in-place replacements
+    private final Shape[] topLevelSnapshot;
+    private final TrackedShape[] shapes;
+    private final BitSet dirty = new BitSet();
+    private boolean structureChanged;
+    // Set when one shape sits at several positions; it only remembers the last one,
+    // so patching would leave the other copies stale
+    private boolean sharedShapes;
+
+    BinaryExportIndex(Path file, Shape[] topLevel, int count) {
+        this.file = file;
+        this.topLevel = topLevel;
+        this.topLevelSnapshot = topLevel.clone();
+        this.shapes = new TrackedShape[count];
+    }
+
+    void register(TrackedShape shape, int position) {
+        if (shape.isTrackedBy(this)) {
+            sharedShapes = true;
+        }
+        shapes[position] = shape;
+        shape.track(this, position);
+    }
+
+    void markChanged(int position) {
+        dirty.set(position);
+    }
+
+    void markStructureChanged() {
+        structureChanged = true;
+    }
+
+    // Patching only works while the preorder layout is the one that was written
+    // and every shape appears in it once.
+    // The top-level array isn't tracked, so it is compared reference by reference.
+    boolean canPatch(Path file, Shape[] topLevel) {
+        if (structureChanged || sharedShapes || !this.file.equals(file) || this.topLevel != topLevel
+                || topLevelSnapshot.length != topLevel.length) {
+            return false;
+        }
+        for (int i = 0; i < topLevel.length; i++) {
+            if (topLevelSnapshot[i] != topLevel[i]) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    int size() {
+        return shapes.length;
+    }
+
+    BitSet getDirty() {
+        return dirty;
+    }
+
+    TrackedShape get(int position) {
+        return shapes[position];
+    }
+}
+
+// Rewrites the records of single shapes at their positions in an existing binary export,
+// through writable mappings of its columns.
+// Compounds are not descended into, since only the changed shapes are visited.
+class BinaryPatchVisitor implements Visitor {
+    private final MappedByteBuffer kinds;
+    private final MappedByteBuffer[] columns = new MappedByteBuffer[BinaryShapeFormat.INT_COLUMNS];
+
+    BinaryPatchVisitor(FileChannel channel, int count) throws IOException {
+        kinds = channel.map(FileChannel.MapMode.READ_WRITE, BinaryShapeFormat.kindsOffset(), count);
+        for (int i = 0; i < columns.length; i++) {
+            columns[i] = channel.map(FileChannel.MapMode.READ_WRITE, BinaryShapeFormat.columnOffset(count, i), (long) count * 4);
+            columns[i].order(ByteOrder.LITTLE_ENDIAN);
+        }
+    }
+
     public void visitDot(Dot d) {
-        System.out.println("Exporting the dot's details in XML format.");
+        patch(d, BinaryShapeFormat.DOT, d.id, d.x, d.y, 0, 0);
     }
 
     public void visitCircle(Circle c) {
-        System.out.println("Exporting the circle's details in XML format.");
+        patch(c, BinaryShapeFormat.CIRCLE, c.id, c.x, c.y, c.radius, 0);
     }
 
     public void visitRectangle(Rectangle r) {
-        System.out.println("Exporting the rectangle's details in XML format.");
+        patch(r, BinaryShapeFormat.RECTANGLE, r.id, r.x, r.y, r.width, r.height);
     }
 
     public void visitCompoundShape(CompoundShape cs) {
-        System.out.println("Exporting the CompoundShape's details in XML format.");
+        patch(cs, BinaryShapeFormat.COMPOUND, cs.id, 0, 0, cs.getChildren().size(), 0);
+    }
+
+    private void patch(TrackedShape shape, byte kind, int id, int x, int y, int a, int b) {
+        int position = shape.getExportPosition();
+        kinds.put(position, kind);
+        columns[BinaryShapeFormat.ID].putInt(position * 4, id);
+        columns[BinaryShapeFormat.X].putInt(position * 4, x);
+        columns[BinaryShapeFormat.Y].putInt(position * 4, y);
+        columns[BinaryShapeFormat.A].putInt(position * 4, a);
+        columns[BinaryShapeFormat.B].putInt(position * 4, b);
+    }
+}
+
+// Receives the raw records of a binary export, without any Shape objects being created
+interface ShapeRecordVisitor {
+    void visitDot(int id, int x, int y);
+    void visitCircle(int id, int x, int y, int radius);
+    void visitRectangle(int id, int x, int y, int width, int height);
+    void enterCompoundShape(int id, int childCount);
+    void exitCompoundShape(int id);
+}
+
+// Memory-maps a binary export and reads its columns in place
+class BinaryShapeReader {
+    private final int count, topLevelCount;
+    private final MappedByteBuffer kinds;
+    private final IntBuffer[] columns = new IntBuffer[BinaryShapeFormat.INT_COLUMNS];
+
+    BinaryShapeReader(Path file) throws IOException {
+        try (FileChannel channel = FileChannel.open(file, StandardOpenOption.READ)) {
+            ByteBuffer header = channel.map(FileChannel.MapMode.READ_ONLY, 0, BinaryShapeFormat.HEADER_BYTES)
+                    .order(ByteOrder.LITTLE_ENDIAN);
+            if (header.getInt() != BinaryShapeFormat.MAGIC || header.getInt() != BinaryShapeFormat.VERSION) {
+                throw new IOException("Not a binary shape export: " + file);
+            }
+            count = header.getInt();
+            topLevelCount = header.getInt();
+            if (channel.size() < BinaryShapeFormat.fileSize(count)) {
+                throw new IOException("Truncated binary shape export: " + file);
+            }
+            kinds = channel.map(FileChannel.MapMode.READ_ONLY, BinaryShapeFormat.kindsOffset(), count);
+            for (int i = 0; i < columns.length; i++) {
+                columns[i] = channel.map(FileChannel.MapMode.READ_ONLY, BinaryShapeFormat.columnOffset(count, i),
+                        (long) count * 4).order(ByteOrder.LITTLE_ENDIAN).asIntBuffer();
+            }
+        }
+    }
+
+    int size() {
+        return count;
+    }
+
+    byte kind(int index) {
+        return kinds.get(index);
+    }
+
+    int value(int column, int index) {
+        return columns[column].get(index);
+    }
+
+    void accept(ShapeRecordVisitor visitor) {
+        int next = 0;
+        for (int i = 0; i < topLevelCount; i++) {
+            next = accept(visitor, next);
+        }
+    }
+
+    // Visits the shape at index and its children, returning the index after its subtree
+    private int accept(ShapeRecordVisitor visitor, int index) {
+        int id = value(BinaryShapeFormat.ID, index), x = value(BinaryShapeFormat.X, index), y = value(BinaryShapeFormat.Y, index);
+        int a = value(BinaryShapeFormat.A, index), b = value(BinaryShapeFormat.B, index);
+        switch (kind(index)) {
+            case BinaryShapeFormat.DOT:
+                visitor.visitDot(id, x, y);
+                return index + 1;
+            case BinaryShapeFormat.CIRCLE:
+                visitor.visitCircle(id, x, y, a);
+                return index + 1;
+            case BinaryShapeFormat.RECTANGLE:
+                visitor.visitRectangle(id, x, y, a, b);
+                return index + 1;
+            case BinaryShapeFormat.COMPOUND:
+                visitor.enterCompoundShape(id, a);
+                int next = index + 1;
+                for (int i = 0; i < a; i++) {
+                    next = accept(visitor, next);
+                }
+                visitor.exitCompoundShape(id);
+                return next;
+            default:
+                throw new IllegalStateException("Unknown shape kind " + kind(index) + " at " + index);
+        }
+    }
+
+    Shape[] readShapes() {
+        Shape[] shapes = new Shape[topLevelCount];
+        int[] next = {0};
+        for (int i = 0; i < topLevelCount; i++) {
+            shapes[i] = readShape(next);
+        }
+        return shapes;
+    }
+
+    private Shape readShape(int[] next) {
+        int index = next[0]++;
+        int id = value(BinaryShapeFormat.ID, index), x = value(BinaryShapeFormat.X, index), y = value(BinaryShapeFormat.Y, index);
+        int a = value(BinaryShapeFormat.A, index), b = value(BinaryShapeFormat.B, index);
+        switch (kind(index)) {
+            case BinaryShapeFormat.DOT:
+                return new Dot(id, x, y);
+            case BinaryShapeFormat.CIRCLE:
+                return new Circle(id, x, y, a);
+            case BinaryShapeFormat.RECTANGLE:
+                return new Rectangle(id, x, y, a, b);
+            case BinaryShapeFormat.COMPOUND:
+                CompoundShape compound = new CompoundShape(id);
+                for (int i = 0; i < a; i++) {
+                    compound.add(readShape(next));
+                }
+                return compound;
+            default:
+                throw new IllegalStateException("Unknown shape kind " + kind(index) + " at " + index);
+        }
+    }
+}
+
+// XML exporter for one slice of the shapes; slices are written out in order, so the
+// document matches a sequential export. Each full heap buffer becomes a chunk as it is,
+// so the slice's bytes are written once and never copied.
+class XMLChunkExportVisitor extends XMLExportVisitor {
+    private static final int CHUNK_SIZE = 1 << 16;
+
+    private final List<ByteBuffer> chunks = new ArrayList<>();
+
+    XMLChunkExportVisitor() {
+        super(ByteBuffer.allocate(CHUNK_SIZE));
+    }
+
+    @Override
+    void flush() {
+        ByteBuffer filled = replaceBuffer(ByteBuffer.allocate(CHUNK_SIZE));
+        if (filled.position() > 0) {
+            chunks.add(filled.flip());
+        }
+    }
+
+    List<ByteBuffer> result() {
+        flush();
+        return chunks;
     }
 }
 
 class Application {
+    // Shapes per slice of a parallel XML export
+    private static final int EXPORT_SLICE_SIZE = 4096;
+
     Shape[] allShapes;
+    ForkJoinPool pool = ForkJoinPool.commonPool();
+    BinaryExportIndex lastBinaryExport;
+
+    private class SliceTask<R> extends RecursiveTask<R> {
+        private static final long serialVersionUID = 1L;
+
+        private final Supplier<? extends MergeableVisitor<R>> visitors;
+        private final MergeableVisitor<R> combiner;
+        private final int from, to, threshold;
+
+        SliceTask(Supplier<? extends MergeableVisitor<R>> visitors, MergeableVisitor<R> combiner,
+                  int from, int to, int threshold) {
+            this.visitors = visitors;
+            this.combiner = combiner;
+            this.from = from;
+            this.to = to;
+            this.threshold = threshold;
+        }
+
+        @Override
+        protected R compute() {
+            if (to - from <= threshold) {
+                MergeableVisitor<R> visitor = visitors.get();
+                for (int i = from; i < to; i++) {
+                    allShapes[i].accept(visitor);
+                }
+                return visitor.result();
+            }
+            int middle = (from + to) >>> 1;
+            SliceTask<R> right = new SliceTask<>(visitors, combiner, middle, to, threshold);
+            right.fork();
+            R left = new SliceTask<>(visitors, combiner, from, middle, threshold).compute();
+            return combiner.combine(left, right.join());
+        }
+    }
+
+    // Visits allShapes on the pool, a fresh visitor per slice, merging the slice results in order
+    <R> R visitParallel(Supplier<? extends MergeableVisitor<R>> visitors) {
+        MergeableVisitor<R> combiner = visitors.get();
+        if (allShapes.length == 0) {
+            return combiner.result();
+        }
+        int threshold = Math.max(1024, allShapes.length / (pool.getParallelism() * 4));
+        return pool.invoke(new SliceTask<>(visitors, combiner, 0, allShapes.length, threshold));
+    }
+
+    ShapeStatistics statistics() {
+        return visitParallel(StatisticsVisitor::new);
+    }
+
+    // Slices are exported on the pool and each is written as soon as every earlier one is out.
+    // At most two slices per worker are in flight, so memory stays bounded however many shapes there are.
+    void exportParallel(WritableByteChannel channel) {
+        int maxInFlight = pool.getParallelism() * 2;
+        ArrayDeque<ForkJoinTask<List<ByteBuffer>>> inFlight = new ArrayDeque<>();
+        XMLExportVisitor document = new XMLExportVisitor(channel, 0);
+        document.startDocument();
+        document.flush();
+        try {
+            for (int from = 0; from < allShapes.length; from += EXPORT_SLICE_SIZE) {
+                if (inFlight.size() == maxInFlight) {
+                    writeChunks(channel, inFlight.poll().join());
+                }
+                int start = from;
+                int end = Math.min(allShapes.length, from + EXPORT_SLICE_SIZE);
+                inFlight.add(pool.submit(() -> exportSlice(start, end)));
+            }
+            while (!inFlight.isEmpty()) {
+                writeChunks(channel, inFlight.poll().join());
+            }
+        } catch (IOException e) {
+            throw new UncheckedIOException(e);
+        } finally {
+            for (ForkJoinTask<List<ByteBuffer>> task : inFlight) {
+                task.cancel(false);
+            }
+        }
+        document.endDocument();
+    }
+
+    private List<ByteBuffer> exportSlice(int from, int to) {
+        XMLChunkExportVisitor visitor = new XMLChunkExportVisitor();
+        for (int i = from; i < to; i++) {
+            allShapes[i].accept(visitor);
+        }
+        return visitor.result();
+    }
+
+    private static void writeChunks(WritableByteChannel channel, List<ByteBuffer> chunks) throws IOException {
+        for (ByteBuffer chunk : chunks) {
+            while (chunk.hasRemaining()) {
+                channel.write(chunk);
+            }
+        }
+    }
 
     void export() {
-        XMLExportVisitor xmlExportVisitor = new XMLExportVisitor();
+        export(Channels.newChannel(System.out));
+    }
+
+    void exportBinary(Path file) throws IOException {
+        ShapeStatistics statistics = statistics();
+        long count = statistics.dots + statistics.circles + statistics.rectangles + statistics.compounds;
+        if (count > Integer.MAX_VALUE / 4) {
+            throw new IOException("Too many shapes for one binary export: " + count);
+        }
+        // The file is truncated below, so the old index must not survive a failed export
+        lastBinaryExport = null;
+        try (FileChannel channel = FileChannel.open(file, StandardOpenOption.CREATE, StandardOpenOption.WRITE,
+                StandardOpenOption.TRUNCATE_EXISTING)) {
+            BinaryExportIndex index = new BinaryExportIndex(file, allShapes, (int) count);
+            BinaryExportVisitor visitor = new BinaryExportVisitor(channel, (int) count, allShapes.length, index);
+            for (Shape shape : allShapes) {
+                shape.accept(visitor);
+            }
+            visitor.finish();
+            lastBinaryExport = index;
+        }
+    }
+
+    // Rewrites only the shapes moved since the last binary export to the same file, falling back
+    // to a full export after structural changes. Returns the number of shapes written.
+    int exportBinaryIncremental(Path file) throws IOException {
+        BinaryExportIndex index = lastBinaryExport;
+        if (index == null || !index.canPatch(file, allShapes)) {
+            exportBinary(file);
+            return lastBinaryExport.size();
+        }
+        BitSet dirty = index.getDirty();
+        int patched = 0;
+        try (FileChannel channel = FileChannel.open(file, StandardOpenOption.READ, StandardOpenOption.WRITE)) {
+            BinaryPatchVisitor visitor = new BinaryPatchVisitor(channel, index.size());
+            for (int position = dirty.nextSetBit(0); position >= 0; position = dirty.nextSetBit(position + 1)) {
+                index.get(position).accept(visitor);
+                patched++;
+            }
+        }
+        dirty.clear();
+        return patched;
+    }
+
+    void export(WritableByteChannel channel) {
+        XMLExportVisitor xmlExportVisitor = new XMLExportVisitor(channel);
+        xmlExportVisitor.startDocument();
         for (Shape shape : allShapes) {
             shape.accept(xmlExportVisitor);
         }
+        xmlExportVisitor.endDocument();
     }
 }
 
-public class Main {
+// Compares double dispatch, a type switch and a class id table on synthetic hierarchies
+// with 2, 4 and 16 concrete types, mixed randomly so every call site sees all of them.
+// Run with an optional item count, e.g. 1000000.
+class DispatchBenchmark {
+    abstract static sealed class Item permits T0, T1, T2, T3, T4, T5, T6, T7, T8, T9, T10, T11, T12, T13, T14, T15 {
+        final int typeId, value;
+
+        Item(int typeId, int value) {
+            this.typeId = typeId;
+            this.value = value;
+        }
+
+        abstract void accept(ItemVisitor v);
+    }
+
+    interface ItemVisitor {
+        void visit(T0 t); void visit(T1 t); void visit(T2 t); void visit(T3 t);
+        void visit(T4 t); void visit(T5 t); void visit(T6 t); void visit(T7 t);
+        void visit(T8 t); void visit(T9 t); void visit(T10 t); void visit(T11 t);
+        void visit(T12 t); void visit(T13 t); void visit(T14 t); void visit(T15 t);
+    }
+
+    static final class T0 extends Item { T0(int v) { super(0, v); } void accept(ItemVisitor v) { v.visit(this); } }
+    static final class T1 extends Item { T1(int v) { super(1, v); } void accept(ItemVisitor v) { v.visit(this); } }
+    static final class T2 extends Item { T2(int v) { super(2, v); } void accept(ItemVisitor v) { v.visit(this); } }
+    static final class T3 extends Item { T3(int v) { super(3, v); } void accept(ItemVisitor v) { v.visit(this); } }
+    static final class T4 extends Item { T4(int v) { super(4, v); } void accept(ItemVisitor v) { v.visit(this); } }
+    static final class T5 extends Item { T5(int v) { super(5, v); } void accept(ItemVisitor v) { v.visit(this); } }
+    static final class T6 extends Item { T6(int v) { super(6, v); } void accept(ItemVisitor v) { v.visit(this); } }
+    static final class T7 extends Item { T7(int v) { super(7, v); } void accept(ItemVisitor v) { v.visit(this); } }
+    static final class T8 extends Item { T8(int v) { super(8, v); } void accept(ItemVisitor v) { v.visit(this); } }
+    static final class T9 extends Item { T9(int v) { super(9, v); } void accept(ItemVisitor v) { v.visit(this); } }
+    static final class T10 extends Item { T10(int v) { super(10, v); } void accept(ItemVisitor v) { v.visit(this); } }
+    static final class T11 extends Item { T11(int v) { super(11, v); } void accept(ItemVisitor v) { v.visit(this); } }
+    static final class T12 extends Item { T12(int v) { super(12, v); } void accept(ItemVisitor v) { v.visit(this); } }
+    static final class T13 extends Item { T13(int v) { super(13, v); } void accept(ItemVisitor v) { v.visit(this); } }
+    static final class T14 extends Item { T14(int v) { super(14, v); } void accept(ItemVisitor v) { v.visit(this); } }
+    static final class T15 extends Item { T15(int v) { super(15, v); } void accept(ItemVisitor v) { v.visit(this); } }
+
+    // Every type does slightly different work, so the calls cannot be merged
+    static final class SumVisitor implements ItemVisitor {
+        long sum;
+
+        public void visit(T0 t) { sum += t.value; }
+        public void visit(T1 t) { sum -= t.value; }
+        public void visit(T2 t) { sum += t.value * 2L; }
+        public void visit(T3 t) { sum ^= t.value; }
+        public void visit(T4 t) { sum += t.value + 4; }
+        public void visit(T5 t) { sum -= t.value + 5; }
+        public void visit(T6 t) { sum += t.value * 6L; }
+        public void visit(T7 t) { sum ^= t.value + 7; }
+        public void visit(T8 t) { sum += t.value + 8; }
+        public void visit(T9 t) { sum -= t.value + 9; }
+        public void visit(T10 t) { sum += t.value * 10L; }
+        public void visit(T11 t) { sum ^= t.value + 11; }
+        public void visit(T12 t) { sum += t.value + 12; }
+        public void visit(T13 t) { sum -= t.value + 13; }
+        public void visit(T14 t) { sum += t.value * 14L; }
+        public void visit(T15 t) { sum ^= t.value + 15; }
+    }
+
+    static void typeSwitch(Item item, ItemVisitor v) {
+        if (item instanceof T0 t) { v.visit(t); }
+        else if (item instanceof T1 t) { v.visit(t); }
+        else if (item instanceof T2 t) { v.visit(t); }
+        else if (item instanceof T3 t) { v.visit(t); }
+        else if (item instanceof T4 t) { v.visit(t); }
+        else if (item instanceof T5 t) { v.visit(t); }
+        else if (item instanceof T6 t) { v.visit(t); }
+        else if (item instanceof T7 t) { v.visit(t); }
+        else if (item instanceof T8 t) { v.visit(t); }
+        else if (item instanceof T9 t) { v.visit(t); }
+        else if (item instanceof T10 t) { v.visit(t); }
+        else if (item instanceof T11 t) { v.visit(t); }
+        else if (item instanceof T12 t) { v.visit(t); }
+        else if (item instanceof T13 t) { v.visit(t); }
+        else if (item instanceof T14 t) { v.visit(t); }
+        else if (item instanceof T15 t) { v.visit(t); }
+    }
+
+    static void table(Item item, ItemVisitor v) {
+        switch (item.typeId) {
+            case 0: v.visit((T0) item); break;
+            case 1: v.visit((T1) item); break;
+            case 2: v.visit((T2) item); break;
+            case 3: v.visit((T3) item); break;
+            case 4: v.visit((T4) item); break;
+            case 5: v.visit((T5) item); break;
+            case 6: v.visit((T6) item); break;
+            case 7: v.visit((T7) item); break;
+            case 8: v.visit((T8) item); break;
+            case 9: v.visit((T9) item); break;
+            case 10: v.visit((T10) item); break;
+            case 11: v.visit((T11) item); break;
+            case 12: v.visit((T12) item); break;
+            case 13: v.visit((T13) item); break;
+            case 14: v.visit((T14) item); break;
+            default: v.visit((T15) item); break;
+        }
+    }
+
+    static Item create(int type, int value) {
+        switch (type) {
+            case 0: return new T0(value);
+            case 1: return new T1(value);
+            case 2: return new T2(value);
+            case 3: return new T3(value);
+            case 4: return new T4(value);
+            case 5: return new T5(value);
+            case 6: return new T6(value);
+            case 7: return new T7(value);
+            case 8: return new T8(value);
+            case 9: return new T9(value);
+            case 10: return new T10(value);
+            case 11: return new T11(value);
+            case 12: return new T12(value);
+            case 13: return new T13(value);
+            case 14: return new T14(value);
+            default: return new T15(value);
+        }
+    }
+
     public static void main(String[] args) {
+        int count = args.length > 0 ? Integer.parseInt(args[0]) : 1_000_000;
+        for (int types : new int[]{2, 4, 16}) {
+            Random random = new Random(types);
+            Item[] items = new Item[count];
+            for (int i = 0; i < count; i++) {
+                items[i] = create(random.nextInt(types), random.nextInt(1000));
+            }
+            long doubleDispatch = measure(() -> {
+                SumVisitor v = new SumVisitor();
+                for (Item item : items) {
+                    item.accept(v);
+                }
+                return v.sum;
+            });
+            long typeSwitch = measure(() -> {
+                SumVisitor v = new SumVisitor();
+                for (Item item : items) {
+                    typeSwitch(item, v);
+                }
+                return v.sum;
+            });
+            long table = measure(() -> {
+                SumVisitor v = new SumVisitor();
+                for (Item item : items) {
+                    table(item, v);
+                }
+                return v.sum;
+            });
+            System.out.println(types + " types: double dispatch " + doubleDispatch / 1000 + " us, type switch "
+                    + typeSwitch / 1000 + " us, table " + table / 1000 + " us");
+        }
+    }
+
+    // Average nanoseconds per run after a warm-up; the results are kept so the loops are not removed
+    private static long measure(LongSupplier run) {
+        long blackhole = 0;
+        for (int i = 0; i < 20; i++) {
+            blackhole += run.getAsLong();
+        }
+        int runs = 30;
+        long start = System.nanoTime();
+        for (int i = 0; i < runs; i++) {
+            blackhole += run.getAsLong();
+        }
+        long elapsed = (System.nanoTime() - start) / runs;
+        if (blackhole == 42) {
+            System.out.println();
+        }
+        return elapsed;
+    }
+}
+
+public class Main {
+    public static void main(String[] args) throws IOException {
         Application app = new Application();
-        app.allShapes = new Shape[]{new Dot(), new Circle(), new Rectangle(), new CompoundShape()};
+        CompoundShape compoundShape = new CompoundShape(4);
+        compoundShape.add(new Dot(5, 1, 1));
+        compoundShape.add(new Circle(6, 2, 2, 1));
+        app.allShapes = new Shape[]{new Dot(1, 10, 20), new Circle(2, 5, -5, 3), new Rectangle(3, 0, 0, 10, 20), compoundShape};
         app.export();
+        System.out.println("Statistics: " + app.statistics());
+
+        Path file = Files.createTempFile("shapes", ".bin");
+        file.toFile().deleteOnExit();
+        app.exportBinary(file);
+        Application reimported = new Application();
+        reimported.allShapes = new BinaryShapeReader(file).readShapes();
+        reimported.export();
+
+        app.allShapes[0].move(30, 40);
+        System.out.println("Shapes patched: " + app.exportBinaryIncremental(file));
     }
 }
@@ -1,15 +1,85 @@
 package DesignPatterns.StructuralDesignPatterns.Composite.src;
 
 import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Comparator;
+import java.util.IdentityHashMap;
+import java.util.Iterator;
 import java.util.List;
+import java.util.Map;
+import java.util.NoSuchElementException;
+import java.util.Random;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.RecursiveTask;
 
+// Axis-aligned bounding box, bounds are inclusive
+class Bounds {
+    static final Bounds EMPTY = new Bounds(Integer.MAX_VALUE, Integer.MAX_VALUE, Integer.MIN_VALUE, Integer.MIN_VALUE);
+
+    final int minX, minY, maxX, maxY;
+
+    Bounds(int minX, int minY, int maxX, int maxY) {
+        this.minX = minX;
+        this.minY = minY;
+        this.maxX = maxX;
+        this.maxY = maxY;
+    }
+
+    boolean isEmpty() {
+        return minX > maxX || minY > maxY;
+    }
+
+    Bounds union(Bounds other) {
+        if (other.isEmpty()) {
+            return this;
+        }
+        if (isEmpty()) {
+            return other;
+        }
+        return new Bounds(Math.min(minX, other.minX), Math.min(minY, other.minY),
+                Math.max(maxX, other.maxX), Math.max(maxY, other.maxY));
+    }
+
+    Bounds translate(int x, int y) {
+        if (isEmpty() || (x == 0 && y == 0)) {
+            return this;
+        }
+        return new Bounds(minX + x, minY + y, maxX + x, maxY + y);
+    }
+
+    boolean contains(int x, int y) {
+        return x >= minX && x <= maxX && y >= minY && y <= maxY;
+    }
+
+    boolean intersects(Bounds other) {
+        return minX <= other.maxX && other.minX <= maxX && minY <= other.maxY && other.minY <= maxY;
+    }
+
+    @Override
+    public String toString() {
+        return isEmpty() ? "[empty]" : "[(" + minX + ", " + minY + ") - (" + maxX + ", " + maxY + ")]";
+    }
+}
+
+// Coordinates and bounds of a graphic are relative to its parent,
+// which may carry a translation of its own
 interface Graphic {
     void move(int x, int y);
     void draw();
+    void draw(int offsetX, int offsetY);
+    void record(DrawCommands out, int offsetX, int offsetY);
+    int getLeafCount();
+    // Changes whenever this graphic or anything below it changes
+    long getVersion();
+    Bounds getBounds();
+    CompoundGraphic getParent();
+    void setParent(CompoundGraphic parent);
 }
 
 class Dot implements Graphic {
     int x, y;
+    CompoundGraphic parent;
+    long version;
 
     Dot(int x, int y) {
         this.x = x;
@@ -20,11 +90,71 @@ class Dot implements Graphic {
     public void move(int x, int y) {
         this.x += x;
         this.y += y;
+        version++;
+        if (parent != null) {
+            parent.invalidate();
+        }
+    }
+
+    @Override
+    public long getVersion() {
+        return version;
+    }
+
+    int getWorldX() {
+        return parent == null ? x : x + parent.getWorldOffsetX();
+    }
+
+    int getWorldY() {
+        return parent == null ? y : y + parent.getWorldOffsetY();
+    }
+
+    // Hit test in parent coordinates
+    boolean contains(int x, int y) {
+        return this.x == x && this.y == y;
+    }
+
+    @Override
+    public Bounds getBounds() {
+        return new Bounds(x, y, x, y);
+    }
+
+    @Override
+    public CompoundGraphic getParent() {
+        return parent;
+    }
+
+    @Override
+    public void setParent(CompoundGraphic parent) {
+        this.parent = parent;
     }
 
     @Override
     public void draw() {
-        System.out.println("Drawing a dot at (" + x + ", " + y + ")");
+        if (parent == null) {
+            draw(0, 0);
+        } else {
+            draw(parent.getWorldOffsetX(), parent.getWorldOffsetY());
+        }
+    }
+
+    @Override
+    public void draw(int offsetX, int offsetY) {
+        System.out.println(describe(x + offsetX, y + offsetY));
+    }
+
+    @Override
+    public void record(DrawCommands out, int offsetX, int offsetY) {
+        out.dot(x + offsetX, y + offsetY);
+    }
+
+    @Override
+    public int getLeafCount() {
+        return 1;
+    }
+
+    static String describe(int x, int y) {
+        return "Drawing a dot at (" + x + ", " + y + ")";
     }
 }
 
@@ -37,58 +167,836 @@ class Circle extends Dot {
     }
 
     @Override
-    public void draw() {
-        System.out.println("Drawing a circle at (" + x + ", " + y + ") with radius " + radius);
+    boolean contains(int x, int y) {
+        long dx = x - this.x, dy = y - this.y;
+        return dx * dx + dy * dy <= (long) radius * radius;
+    }
+
+    @Override
+    public Bounds getBounds() {
+        return new Bounds(x - radius, y - radius, x + radius, y + radius);
+    }
+
+    @Override
+    public void draw(int offsetX, int offsetY) {
+        System.out.println(describe(x + offsetX, y + offsetY, radius));
+    }
+
+    @Override
+    public void record(DrawCommands out, int offsetX, int offsetY) {
+        out.circle(x + offsetX, y + offsetY, radius);
+    }
+
+    static String describe(int x, int y, int radius) {
+        return "Drawing a circle at (" + x + ", " + y + ") with radius " + radius;
+    }
+}
+
+// Children in draw order with an identity index, so removing one is O(1).
+// Removed slots are left as tombstones and squeezed out by compact(), which runs once they
+// outnumber the live children or before the next indexed read.
+class ChildList implements Iterable<Graphic> {
+    private Graphic[] slots = new Graphic[4];
+    private int used, size;
+    private final Map<Graphic, Integer> positions = new IdentityHashMap<>();
+
+    boolean add(Graphic child) {
+        if (positions.containsKey(child)) {
+            return false;
+        }
+        if (used == slots.length) {
+            slots = Arrays.copyOf(slots, used * 2);
+        }
+        positions.put(child, used);
+        slots[used++] = child;
+        size++;
+        return true;
+    }
+
+    boolean remove(Graphic child) {
+        Integer position = positions.remove(child);
+        if (position == null) {
+            return false;
+        }
+        slots[position] = null;
+        size--;
+        if (used - size > Math.max(size, 16)) {
+            compact();
+        }
+        return true;
+    }
+
+    boolean contains(Graphic child) {
+        return positions.containsKey(child);
+    }
+
+    int size() {
+        return size;
+    }
+
+    boolean isEmpty() {
+        return size == 0;
+    }
+
+    Graphic get(int index) {
+        if (used != size) {
+            compact();
+        }
+        return slots[index];
+    }
+
+    void compact() {
+        int next = 0;
+        for (int i = 0; i < used; i++) {
+            Graphic child = slots[i];
+            if (child != null) {
+                if (next != i) {
+                    slots[next] = child;
+                    positions.put(child, next);
+                }
+                next++;
+            }
+        }
+        Arrays.fill(slots, next, used, null);
+        used = next;
+    }
+
+    @Override
+    public Iterator<Graphic> iterator() {
+        return new Iterator<Graphic>() {
+            private int next = skipTombstones(0);
+
+            private int skipTombstones(int from) {
+                while (from < used && slots[from] == null) {
+                    from++;
+                }
+                return from;
+            }
+
+            @Override
+            public boolean hasNext() {
+                return next < used;
+            }
+
+            @Override
+            public Graphic next() {
+                if (next >= used) {
+                    throw new NoSuchElementException();
+                }
+                Graphic child = slots[next];
+                next = skipTombstones(next + 1);
+                return child;
+            }
+        };
     }
 }
 
 class CompoundGraphic implements Graphic {
-    List<Graphic> children = new ArrayList<>();
+    ChildList children = new ChildList();
+    CompoundGraphic parent;
+    // Translation applied to all children when they are drawn, so moving a group is O(1)
+    int offsetX, offsetY;
+    // Union of the children's bounds before the translation, recomputed only after a change below this node
+    private Bounds bounds = Bounds.EMPTY;
+    private int leafCount;
+    private boolean dirty;
+    long version, structureVersion;
+    // Compiled form of this subtree, kept up to date lazily once freeze() has been called
+    private RenderList compiled;
 
+    // A detached graphic's coordinates are world coordinates, so adding and removing
+    // fold this group's world offset in and out and the graphic stays where it was drawn
     void add(Graphic child) {
-        children.add(child);
+        if (!children.add(child)) {
+            throw new IllegalArgumentException("Graphic is already a child of this group");
+        }
+        child.move(-getWorldOffsetX(), -getWorldOffsetY());
+        child.setParent(this);
+        invalidateStructure();
     }
 
     void remove(Graphic child) {
-        children.remove(child);
+        if (children.remove(child)) {
+            if (child.getParent() == this) {
+                child.setParent(null);
+                child.move(getWorldOffsetX(), getWorldOffsetY());
+            }
+            invalidateStructure();
+        }
+    }
+
+    // Moves the selection into a new group appended to this one.
+    // Each removal is O(1), so grouping k of n children costs O(n + k) including compaction.
+    // The selection must be distinct direct children; it is checked before anything moves.
+    CompoundGraphic regroup(List<Graphic> selection) {
+        Map<Graphic, Boolean> selected = new IdentityHashMap<>();
+        for (Graphic component : selection) {
+            if (component.getParent() != this) {
+                throw new IllegalArgumentException("Graphic is not a child of this group");
+            }
+            if (selected.put(component, Boolean.TRUE) != null) {
+                throw new IllegalArgumentException("Graphic is selected more than once");
+            }
+        }
+        CompoundGraphic group = new CompoundGraphic();
+        for (Graphic component : selection) {
+            remove(component);
+            group.add(component);
+        }
+        add(group);
+        return group;
+    }
+
+    // Marks the cached bounds of this group and its ancestors dirty and bumps their versions, O(depth)
+    void invalidate() {
+        for (CompoundGraphic node = this; node != null; node = node.parent) {
+            node.dirty = true;
+            node.version++;
+        }
+    }
+
+    void invalidateStructure() {
+        for (CompoundGraphic node = this; node != null; node = node.parent) {
+            node.structureVersion++;
+        }
+        invalidate();
+    }
+
+    @Override
+    public long getVersion() {
+        return version;
+    }
+
+    RenderList freeze() {
+        if (compiled == null) {
+            compiled = new RenderList(this);
+        }
+        compiled.update();
+        return compiled;
+    }
+
+    int getWorldOffsetX() {
+        return parent == null ? offsetX : offsetX + parent.getWorldOffsetX();
+    }
+
+    int getWorldOffsetY() {
+        return parent == null ? offsetY : offsetY + parent.getWorldOffsetY();
+    }
+
+    @Override
+    public Bounds getBounds() {
+        if (dirty) {
+            children.compact();
+            Bounds union = Bounds.EMPTY;
+            int leaves = 0;
+            for (Graphic child : children) {
+                union = union.union(child.getBounds());
+                leaves += child.getLeafCount();
+            }
+            bounds = union;
+            leafCount = leaves;
+            dirty = false;
+        }
+        return bounds.translate(offsetX, offsetY);
+    }
+
+    // Cached together with the bounds
+    @Override
+    public int getLeafCount() {
+        getBounds();
+        return leafCount;
+    }
+
+    @Override
+    public CompoundGraphic getParent() {
+        return parent;
+    }
+
+    @Override
+    public void setParent(CompoundGraphic parent) {
+        this.parent = parent;
     }
 
     @Override
     public void move(int x, int y) {
-        for (Graphic child : children) {
-            child.move(x, y);
+        offsetX += x;
+        offsetY += y;
+        version++;
+        if (parent != null) {
+            parent.invalidate();
         }
     }
 
     @Override
     public void draw() {
+        if (parent == null) {
+            draw(0, 0);
+        } else {
+            draw(parent.getWorldOffsetX(), parent.getWorldOffsetY());
+        }
+    }
+
+    // Children receive the composed translation, so the whole subtree is drawn in one pass
+    @Override
+    public void draw(int offsetX, int offsetY) {
         for (Graphic child : children) {
-            child.draw();
+            child.draw(offsetX + this.offsetX, offsetY + this.offsetY);
         }
     }
+
+    @Override
+    public void record(DrawCommands out, int offsetX, int offsetY) {
+        for (Graphic child : children) {
+            child.record(out, offsetX + this.offsetX, offsetY + this.offsetY);
+        }
+    }
+}
+
+// Draw calls recorded into primitive arrays, so subtrees can be drawn separately and replayed in order
+class DrawCommands {
+    static final byte DOT = 0, CIRCLE = 1;
+
+    byte[] tags = new byte[16];
+    int[] xs = new int[16], ys = new int[16], radii = new int[16];
+    int size;
+
+    void dot(int x, int y) {
+        add(DOT, x, y, 0);
+    }
+
+    void circle(int x, int y, int radius) {
+        add(CIRCLE, x, y, radius);
+    }
+
+    private void add(byte tag, int x, int y, int radius) {
+        ensureCapacity(size + 1);
+        tags[size] = tag;
+        xs[size] = x;
+        ys[size] = y;
+        radii[size] = radius;
+        size++;
+    }
+
+    void append(DrawCommands other) {
+        ensureCapacity(size + other.size);
+        System.arraycopy(other.tags, 0, tags, size, other.size);
+        System.arraycopy(other.xs, 0, xs, size, other.size);
+        System.arraycopy(other.ys, 0, ys, size, other.size);
+        System.arraycopy(other.radii, 0, radii, size, other.size);
+        size += other.size;
+    }
+
+    private void ensureCapacity(int capacity) {
+        if (capacity > tags.length) {
+            int length = Math.max(capacity, tags.length * 2);
+            tags = Arrays.copyOf(tags, length);
+            xs = Arrays.copyOf(xs, length);
+            ys = Arrays.copyOf(ys, length);
+            radii = Arrays.copyOf(radii, length);
+        }
+    }
+
+    void replay() {
+        for (int i = 0; i < size; i++) {
+            if (tags[i] == CIRCLE) {
+                System.out.println(Circle.describe(xs[i], ys[i], radii[i]));
+            } else {
+                System.out.println(Dot.describe(xs[i], ys[i]));
+            }
+        }
+    }
+}
+
+// Flattened preorder copy of a scene in primitive arrays. Each entry stores its
+// coordinates relative to the entry at parents[i], so drawing is one loop with no virtual calls.
+// On update, moves are patched by descending only into subtrees whose version changed.
+// A structural change anywhere below the root rebuilds the whole list.
+class RenderList {
+    static final byte GROUP = 0, DOT = 1, CIRCLE = 2;
+
+    private final CompoundGraphic root;
+    private Graphic[] graphics = new Graphic[16];
+    private byte[] tags = new byte[16];
+    private int[] xs = new int[16], ys = new int[16], radii = new int[16];
+    private int[] parents = new int[16], subtreeSizes = new int[16];
+    private long[] versions = new long[16];
+    private int[] worldXs = new int[16], worldYs = new int[16];
+    private int size;
+    private long structureVersion = -1;
+
+    RenderList(CompoundGraphic root) {
+        this.root = root;
+    }
+
+    int size() {
+        return size;
+    }
+
+    void update() {
+        if (structureVersion != root.structureVersion) {
+            size = 0;
+            append(root, -1);
+            structureVersion = root.structureVersion;
+        } else {
+            refresh(0);
+        }
+    }
+
+    private void append(Graphic graphic, int parent) {
+        int slot = size++;
+        ensureCapacity(size);
+        graphics[slot] = graphic;
+        parents[slot] = parent;
+        read(slot);
+        if (graphic instanceof CompoundGraphic) {
+            for (Graphic child : ((CompoundGraphic) graphic).children) {
+                append(child, slot);
+            }
+        }
+        subtreeSizes[slot] = size - slot;
+    }
+
+    private void read(int slot) {
+        Graphic graphic = graphics[slot];
+        if (graphic instanceof CompoundGraphic) {
+            CompoundGraphic compound = (CompoundGraphic) graphic;
+            tags[slot] = GROUP;
+            xs[slot] = compound.offsetX;
+            ys[slot] = compound.offsetY;
+        } else {
+            Dot dot = (Dot) graphic;
+            tags[slot] = dot instanceof Circle ? CIRCLE : DOT;
+            xs[slot] = dot.x;
+            ys[slot] = dot.y;
+            radii[slot] = dot instanceof Circle ? ((Circle) dot).radius : 0;
+        }
+        versions[slot] = graphic.getVersion();
+    }
+
+    private void refresh(int slot) {
+        if (versions[slot] == graphics[slot].getVersion()) {
+            return;
+        }
+        read(slot);
+        int end = slot + subtreeSizes[slot];
+        for (int child = slot + 1; child < end; child += subtreeSizes[child]) {
+            refresh(child);
+        }
+    }
+
+    private void ensureCapacity(int capacity) {
+        if (capacity > tags.length) {
+            int length = Math.max(capacity, tags.length * 2);
+            graphics = Arrays.copyOf(graphics, length);
+            tags = Arrays.copyOf(tags, length);
+            xs = Arrays.copyOf(xs, length);
+            ys = Arrays.copyOf(ys, length);
+            radii = Arrays.copyOf(radii, length);
+            parents = Arrays.copyOf(parents, length);
+            subtreeSizes = Arrays.copyOf(subtreeSizes, length);
+            versions = Arrays.copyOf(versions, length);
+            worldXs = Arrays.copyOf(worldXs, length);
+            worldYs = Arrays.copyOf(worldYs, length);
+        }
+    }
+
+    void record(DrawCommands out) {
+        update();
+        CompoundGraphic parent = root.getParent();
+        int baseX = parent == null ? 0 : parent.getWorldOffsetX();
+        int baseY = parent == null ? 0 : parent.getWorldOffsetY();
+        for (int i = 0; i < size; i++) {
+            int parentSlot = parents[i];
+            int worldX = xs[i] + (parentSlot < 0 ? baseX : worldXs[parentSlot]);
+            int worldY = ys[i] + (parentSlot < 0 ? baseY : worldYs[parentSlot]);
+            worldXs[i] = worldX;
+            worldYs[i] = worldY;
+            if (tags[i] == DOT) {
+                out.dot(worldX, worldY);
+            } else if (tags[i] == CIRCLE) {
+                out.circle(worldX, worldY, radii[i]);
+            }
+        }
+    }
+
+    void draw() {
+        DrawCommands out = new DrawCommands();
+        record(out);
+        out.replay();
+    }
+}
+
+// Compares recording a large scene through the recursive Graphic calls with the compiled RenderList.
+// Run with an optional leaf count, e.g. 1000000.
+class RenderListBenchmark {
+    public static void main(String[] args) {
+        int leaves = args.length > 0 ? Integer.parseInt(args[0]) : 1_000_000;
+        Random random = new Random(42);
+        CompoundGraphic scene = new CompoundGraphic();
+        List<Dot> dots = new ArrayList<>();
+        CompoundGraphic group = scene;
+        for (int i = 0; i < leaves; i++) {
+            if (i % 1000 == 0) {
+                group = new CompoundGraphic();
+                scene.add(group);
+            }
+            Dot dot = random.nextBoolean() ? new Dot(random.nextInt(10_000), random.nextInt(10_000))
+                    : new Circle(random.nextInt(10_000), random.nextInt(10_000), random.nextInt(50));
+            group.add(dot);
+            dots.add(dot);
+        }
+
+        long recursive = measure(() -> {
+            DrawCommands out = new DrawCommands();
+            scene.record(out, 0, 0);
+        });
+        RenderList compiled = scene.freeze();
+        long flat = measure(() -> compiled.record(new DrawCommands()));
+        long moved = measure(() -> {
+            dots.get(random.nextInt(dots.size())).move(1, 1);
+            compiled.record(new DrawCommands());
+        });
+        System.out.println(leaves + " leaves: recursive " + recursive / 1000 + " us, compiled " + flat / 1000
+                + " us, compiled after one move " + moved / 1000 + " us");
+    }
+
+    // Average nanoseconds per run after a warm-up
+    private static long measure(Runnable run) {
+        for (int i = 0; i < 10; i++) {
+            run.run();
+        }
+        int runs = 20;
+        long start = System.nanoTime();
+        for (int i = 0; i < runs; i++) {
+            run.run();
+        }
+        return (System.nanoTime() - start) / runs;
+    }
+}
+
+// Records a scene on a ForkJoin pool. Child ranges holding more than the threshold of leaves
+// are split in two, and the halves' commands are concatenated in child order,
+// so replaying gives the same output as draw().
+// A move is already O(1) per group, so only drawing needs the parallel traversal.
+class ParallelGraphicRenderer {
+    private final ForkJoinPool pool;
+    private final int threshold;
+
+    ParallelGraphicRenderer() {
+        this(ForkJoinPool.commonPool(), 4096);
+    }
+
+    ParallelGraphicRenderer(ForkJoinPool pool, int threshold) {
+        this.pool = pool;
+        this.threshold = Math.max(1, threshold);
+    }
+
+    private class RecordTask extends RecursiveTask<DrawCommands> {
+        private static final long serialVersionUID = 1L;
+
+        private final CompoundGraphic node;
+        private final int from, to, offsetX, offsetY;
+
+        RecordTask(CompoundGraphic node, int from, int to, int offsetX, int offsetY) {
+            this.node = node;
+            this.from = from;
+            this.to = to;
+            this.offsetX = offsetX;
+            this.offsetY = offsetY;
+        }
+
+        @Override
+        protected DrawCommands compute() {
+            int childOffsetX = offsetX + node.offsetX, childOffsetY = offsetY + node.offsetY;
+            if (to - from == 1) {
+                Graphic child = node.children.get(from);
+                if (child instanceof CompoundGraphic && child.getLeafCount() > threshold) {
+                    CompoundGraphic compound = (CompoundGraphic) child;
+                    return new RecordTask(compound, 0, compound.children.size(), childOffsetX, childOffsetY).compute();
+                }
+            }
+            int leaves = 0;
+            for (int i = from; i < to; i++) {
+                leaves += node.children.get(i).getLeafCount();
+            }
+            if (leaves <= threshold || to - from == 1) {
+                DrawCommands out = new DrawCommands();
+                for (int i = from; i < to; i++) {
+                    node.children.get(i).record(out, childOffsetX, childOffsetY);
+                }
+                return out;
+            }
+            int middle = (from + to) >>> 1;
+            RecordTask left = new RecordTask(node, from, middle, offsetX, offsetY);
+            RecordTask right = new RecordTask(node, middle, to, offsetX, offsetY);
+            right.fork();
+            DrawCommands out = left.compute();
+            out.append(right.join());
+            return out;
+        }
+    }
+
+    DrawCommands record(CompoundGraphic scene) {
+        // Bring every cached leaf count up to date and compact every changed child list
+        // before the workers read them
+        scene.getBounds();
+        CompoundGraphic parent = scene.getParent();
+        int offsetX = parent == null ? 0 : parent.getWorldOffsetX();
+        int offsetY = parent == null ? 0 : parent.getWorldOffsetY();
+        if (scene.children.isEmpty()) {
+            return new DrawCommands();
+        }
+        return pool.invoke(new RecordTask(scene, 0, scene.children.size(), offsetX, offsetY));
+    }
+
+    void draw(CompoundGraphic scene) {
+        record(scene).replay();
+    }
+}
+
+// Bounding-volume hierarchy over the leaves of a scene, in world coordinates.
+// Built once with median splits, then refitted bottom-up when leaves move.
+class BoundingVolumeHierarchy {
+    private static class Node {
+        Bounds bounds;
+        Node left, right, parent;
+        Dot leaf;
+        int drawOrder;
+    }
+
+    private Node root;
+    private final Map<Dot, Node> leafNodes = new IdentityHashMap<>();
+
+    BoundingVolumeHierarchy(CompoundGraphic scene) {
+        List<Node> leaves = new ArrayList<>();
+        collect(scene, 0, 0, leaves);
+        if (!leaves.isEmpty()) {
+            root = build(leaves.toArray(new Node[0]), 0, leaves.size());
+        }
+    }
+
+    private void collect(Graphic graphic, int offsetX, int offsetY, List<Node> leaves) {
+        if (graphic instanceof CompoundGraphic) {
+            CompoundGraphic compound = (CompoundGraphic) graphic;
+            for (Graphic child : compound.children) {
+                collect(child, offsetX + compound.offsetX, offsetY + compound.offsetY, leaves);
+            }
+        } else if (graphic instanceof Dot) {
+            Node node = new Node();
+            node.leaf = (Dot) graphic;
+            node.bounds = graphic.getBounds().translate(offsetX, offsetY);
+            node.drawOrder = leaves.size();
+            leafNodes.put(node.leaf, node);
+            leaves.add(node);
+        }
+    }
+
+    private static Node build(Node[] leaves, int from, int to) {
+        if (to - from == 1) {
+            return leaves[from];
+        }
+        int minX = Integer.MAX_VALUE, minY = Integer.MAX_VALUE, maxX = Integer.MIN_VALUE, maxY = Integer.MIN_VALUE;
+        for (int i = from; i < to; i++) {
+            Bounds bounds = leaves[i].bounds;
+            minX = Math.min(minX, bounds.minX);
+            minY = Math.min(minY, bounds.minY);
+            maxX = Math.max(maxX, bounds.maxX);
+            maxY = Math.max(maxY, bounds.maxY);
+        }
+        Bounds union = new Bounds(minX, minY, maxX, maxY);
+        // Split at the median centre along the longer axis
+        boolean alongX = (long) maxX - minX >= (long) maxY - minY;
+        int middle = (from + to) >>> 1;
+        select(leaves, from, to - 1, middle, alongX);
+        Node node = new Node();
+        node.left = build(leaves, from, middle);
+        node.right = build(leaves, middle, to);
+        node.left.parent = node;
+        node.right.parent = node;
+        node.bounds = union;
+        return node;
+    }
+
+    private static long centre(Node node, boolean alongX) {
+        return alongX ? (long) node.bounds.minX + node.bounds.maxX : (long) node.bounds.minY + node.bounds.maxY;
+    }
+
+    // Quickselect: afterwards leaves[k] has the k-th smallest centre, smaller ones before it, larger after
+    private static void select(Node[] leaves, int low, int high, int k, boolean alongX) {
+        while (low < high) {
+            long pivot = centre(leaves[(low + high) >>> 1], alongX);
+            int i = low, j = high;
+            while (i <= j) {
+                while (centre(leaves[i], alongX) < pivot) {
+                    i++;
+                }
+                while (centre(leaves[j], alongX) > pivot) {
+                    j--;
+                }
+                if (i <= j) {
+                    Node swap = leaves[i];
+                    leaves[i++] = leaves[j];
+                    leaves[j--] = swap;
+                }
+            }
+            if (k <= j) {
+                high = j;
+            } else if (k >= i) {
+                low = i;
+            } else {
+                return;
+            }
+        }
+    }
+
+    // Updates the leaves under a moved graphic and refits their ancestors, O(k log n) for k leaves
+    void refit(Graphic moved) {
+        CompoundGraphic parent = moved.getParent();
+        refit(moved, parent == null ? 0 : parent.getWorldOffsetX(), parent == null ? 0 : parent.getWorldOffsetY());
+    }
+
+    private void refit(Graphic graphic, int offsetX, int offsetY) {
+        if (graphic instanceof CompoundGraphic) {
+            CompoundGraphic compound = (CompoundGraphic) graphic;
+            for (Graphic child : compound.children) {
+                refit(child, offsetX + compound.offsetX, offsetY + compound.offsetY);
+            }
+            return;
+        }
+        Node node = leafNodes.get(graphic);
+        if (node == null) {
+            return;
+        }
+        node.bounds = graphic.getBounds().translate(offsetX, offsetY);
+        for (Node ancestor = node.parent; ancestor != null; ancestor = ancestor.parent) {
+            Bounds union = ancestor.left.bounds.union(ancestor.right.bounds);
+            if (sameBounds(union, ancestor.bounds)) {
+                break;
+            }
+            ancestor.bounds = union;
+        }
+    }
+
+    private static boolean sameBounds(Bounds a, Bounds b) {
+        return a.minX == b.minX && a.minY == b.minY && a.maxX == b.maxX && a.maxY == b.maxY;
+    }
+
+    // Draw order decides which of several overlapping leaves is on top
+    void updateDrawOrder(CompoundGraphic scene) {
+        int[] next = {0};
+        updateDrawOrder(scene, next);
+    }
+
+    private void updateDrawOrder(Graphic graphic, int[] next) {
+        if (graphic instanceof CompoundGraphic) {
+            for (Graphic child : ((CompoundGraphic) graphic).children) {
+                updateDrawOrder(child, next);
+            }
+        } else {
+            Node node = leafNodes.get(graphic);
+            if (node != null) {
+                node.drawOrder = next[0]++;
+            }
+        }
+    }
+
+    // Topmost leaf under the point, or null
+    Dot pick(int x, int y) {
+        Node best = null;
+        List<Node> stack = new ArrayList<>();
+        if (root != null) {
+            stack.add(root);
+        }
+        while (!stack.isEmpty()) {
+            Node node = stack.remove(stack.size() - 1);
+            if (!node.bounds.contains(x, y)) {
+                continue;
+            }
+            if (node.leaf == null) {
+                stack.add(node.left);
+                stack.add(node.right);
+            } else if ((best == null || node.drawOrder > best.drawOrder) && hits(node.leaf, x, y)) {
+                best = node;
+            }
+        }
+        return best == null ? null : best.leaf;
+    }
+
+    private static boolean hits(Dot leaf, int x, int y) {
+        CompoundGraphic parent = leaf.getParent();
+        return parent == null ? leaf.contains(x, y)
+                : leaf.contains(x - parent.getWorldOffsetX(), y - parent.getWorldOffsetY());
+    }
+
+    // Leaves whose bounds intersect the area, in draw order
+    List<Dot> pick(Bounds area) {
+        List<Node> hits = new ArrayList<>();
+        List<Node> stack = new ArrayList<>();
+        if (root != null) {
+            stack.add(root);
+        }
+        while (!stack.isEmpty()) {
+            Node node = stack.remove(stack.size() - 1);
+            if (!node.bounds.intersects(area)) {
+                continue;
+            }
+            if (node.leaf == null) {
+                stack.add(node.left);
+                stack.add(node.right);
+            } else {
+                hits.add(node);
+            }
+        }
+        hits.sort(Comparator.comparingInt(node -> node.drawOrder));
+        List<Dot> leaves = new ArrayList<>(hits.size());
+        for (Node node : hits) {
+            leaves.add(node.leaf);
+        }
+        return leaves;
+    }
 }
 
 class ImageEditor {
     CompoundGraphic all;
+    BoundingVolumeHierarchy index;
 
     void load() {
         all = new CompoundGraphic();
         all.add(new Dot(1, 2));
         all.add(new Circle(5, 3, 10));
+        index = new BoundingVolumeHierarchy(all);
     }
 
     void groupSelected(List<Graphic> components) {
-        CompoundGraphic group = new CompoundGraphic();
-        for (Graphic component : components) {
-            group.add(component);
-            all.remove(component);
-        }
-        all.add(group);
+        CompoundGraphic group = all.regroup(components);
+        index.refit(group);
+        index.updateDrawOrder(all);
+    }
+
+    void move(Graphic graphic, int x, int y) {
+        graphic.move(x, y);
+        index.refit(graphic);
+    }
+
+    Dot pick(int x, int y) {
+        return index.pick(x, y);
+    }
+
+    List<Dot> pick(Bounds area) {
+        return index.pick(area);
     }
 
     void draw() {
         all.draw();
     }
+
+    void draw(ParallelGraphicRenderer renderer) {
+        renderer.draw(all);
+    }
+
+    Bounds getBounds() {
+        return all.getBounds();
+    }
 }
 
 public class Main {
@@ -96,5 +1004,13 @@ public class Main {
         ImageEditor editor = new ImageEditor();
         editor.load();
         editor.draw();
+        System.out.println("Scene bounds: " + editor.getBounds());
+        editor.move(editor.all, 10, 10);
+        editor.draw();
+        System.out.println("Scene bounds: " + editor.getBounds());
+        System.out.println("Picked at (11, 12): " + editor.pick(11, 12).getClass().getSimpleName());
+        System.out.println("Picked in area: " + editor.pick(new Bounds(0, 0, 12, 12)).size());
+        editor.draw(new ParallelGraphicRenderer());
+        editor.all.freeze().draw();
     }
 }
\ No newline at end of file
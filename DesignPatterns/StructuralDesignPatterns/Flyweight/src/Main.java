@@ -1,39 +1,322 @@
 package DesignPatterns.StructuralDesignPatterns.Flyweight.src;
 
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.IntBuffer;
+import java.nio.ShortBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
 import java.util.ArrayList;
+import java.util.Arrays;
 import java.util.HashMap;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
 import java.util.List;
 import java.util.Map;
+import java.util.TreeMap;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.Executor;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.RecursiveAction;
+import java.util.concurrent.TimeUnit;
+import java.util.function.IntConsumer;
+
+// Texture bytes loaded from disk, shared by every texture file with the same content
+class Texture {
+    private final ByteBuffer data;
+    private final String digest;
+
+    Texture(ByteBuffer data, String digest) {
+        this.data = data;
+        this.digest = digest;
+    }
+
+    public ByteBuffer getData() {
+        return data.asReadOnlyBuffer();
+    }
+
+    public String getDigest() {
+        return digest;
+    }
+
+    public int size() {
+        return data.capacity();
+    }
+}
+
+// Loads texture files in the background and keeps them within a byte budget.
+// Readers never wait for disk: getIfLoaded returns null and starts a load on a miss.
+// Names that failed to load are remembered and not retried until their backoff has passed.
+class TextureCache {
+    private static final int MAP_THRESHOLD = 1 << 16;
+    // A failed name isn't retried for this long, doubling after every further failure
+    private static final long INITIAL_RETRY_NANOS = TimeUnit.SECONDS.toNanos(1);
+    private static final long MAX_RETRY_NANOS = TimeUnit.MINUTES.toNanos(5);
+
+    static class Stats {
+        final long hits, misses, loads, failures, suppressed, deduplicated, evictions, bytes;
+
+        Stats(long hits, long misses, long loads, long failures, long suppressed, long deduplicated, long evictions,
+              long bytes) {
+            this.hits = hits;
+            this.misses = misses;
+            this.loads = loads;
+            this.failures = failures;
+            this.suppressed = suppressed;
+            this.deduplicated = deduplicated;
+            this.evictions = evictions;
+            this.bytes = bytes;
+        }
+
+        @Override
+        public String toString() {
+            return "hits=" + hits + ", misses=" + misses + ", loads=" + loads + ", failures=" + failures
+                    + ", suppressed=" + suppressed + ", deduplicated=" + deduplicated + ", evictions=" + evictions
+                    + ", bytes=" + bytes;
+        }
+    }
+
+    // Negative cache entry for a texture that could not be loaded
+    private static class Failure {
+        final Throwable error;
+        final long retryAt;
+        final long backoff;
+
+        Failure(Throwable error, long retryAt, long backoff) {
+            this.error = error;
+            this.retryAt = retryAt;
+            this.backoff = backoff;
+        }
+    }
+
+    private final Path directory;
+    private final long byteBudget;
+    private final Executor executor;
+    // Access-ordered, so iteration starts at the least recently used texture
+    private final LinkedHashMap<String, Texture> loaded = new LinkedHashMap<>(16, 0.75f, true);
+    private final Map<String, CompletableFuture<Texture>> pending = new HashMap<>();
+    private final Map<String, Texture> byDigest = new HashMap<>();
+    private final Map<String, Integer> digestReferences = new HashMap<>();
+    private final Map<String, Failure> failed = new HashMap<>();
+    private long hits, misses, loads, failures, suppressed, deduplicated, evictions, bytes;
+
+    public TextureCache(Path directory, long byteBudget) {
+        this(directory, byteBudget, Executors.newFixedThreadPool(2, runnable -> {
+            Thread thread = new Thread(runnable, "texture-loader");
+            thread.setDaemon(true);
+            return thread;
+        }));
+    }
+
+    public TextureCache(Path directory, long byteBudget, Executor executor) {
+        this.directory = directory;
+        this.byteBudget = byteBudget;
+        this.executor = executor;
+    }
+
+    public synchronized Texture getIfLoaded(String name) {
+        Texture texture = loaded.get(name);
+        if (texture != null) {
+            hits++;
+            return texture;
+        }
+        misses++;
+        load(name);
+        return null;
+    }
+
+    public synchronized CompletableFuture<Texture> load(String name) {
+        Texture texture = loaded.get(name);
+        if (texture != null) {
+            return CompletableFuture.completedFuture(texture);
+        }
+        Failure failure = failed.get(name);
+        if (failure != null && System.nanoTime() - failure.retryAt < 0) {
+            suppressed++;
+            return CompletableFuture.failedFuture(failure.error);
+        }
+        CompletableFuture<Texture> future = pending.get(name);
+        if (future == null) {
+            future = CompletableFuture.supplyAsync(() -> read(name), executor)
+                    .whenComplete((result, error) -> complete(name, result, error));
+            // whenComplete may already have run, in which case the entry must not be left behind
+            if (!future.isDone()) {
+                pending.put(name, future);
+            }
+        }
+        return future;
+    }
+
+    public synchronized Stats getStats() {
+        return new Stats(hits, misses, loads, failures, suppressed, deduplicated, evictions, bytes);
+    }
+
+    private Texture read(String name) {
+        try (FileChannel channel = FileChannel.open(directory.resolve(name), StandardOpenOption.READ)) {
+            long size = channel.size();
+            if (size > Integer.MAX_VALUE) {
+                throw new IOException("Texture too large: " + name);
+            }
+            ByteBuffer data;
+            if (size >= MAP_THRESHOLD) {
+                data = channel.map(FileChannel.MapMode.READ_ONLY, 0, size);
+            } else {
+                data = ByteBuffer.allocate((int) size);
+                while (data.hasRemaining() && channel.read(data) >= 0) {
+                    // keep reading until the buffer is full
+                }
+                data.flip();
+            }
+            MessageDigest digest = MessageDigest.getInstance("SHA-256");
+            digest.update(data.duplicate());
+            StringBuilder hex = new StringBuilder();
+            for (byte b : digest.digest()) {
+                hex.append(String.format("%02x", b));
+            }
+            return new Texture(data, hex.toString());
+        } catch (IOException | NoSuchAlgorithmException e) {
+            throw new RuntimeException("Could not load texture " + name, e);
+        }
+    }
+
+    private synchronized void complete(String name, Texture texture, Throwable error) {
+        pending.remove(name);
+        if (texture == null) {
+            failures++;
+            Failure previous = failed.get(name);
+            long backoff = previous == null ? INITIAL_RETRY_NANOS : Math.min(previous.backoff * 2, MAX_RETRY_NANOS);
+            failed.put(name, new Failure(error, System.nanoTime() + backoff, backoff));
+            return;
+        }
+        failed.remove(name);
+        loads++;
+        Texture shared = byDigest.get(texture.getDigest());
+        if (shared != null) {
+            deduplicated++;
+        } else {
+            shared = texture;
+            byDigest.put(shared.getDigest(), shared);
+            bytes += shared.size();
+        }
+        digestReferences.merge(shared.getDigest(), 1, Integer::sum);
+        loaded.put(name, shared);
+        evictOverBudget();
+    }
+
+    // The most recently loaded texture always stays, even if it alone exceeds the budget
+    private void evictOverBudget() {
+        Iterator<Map.Entry<String, Texture>> eldest = loaded.entrySet().iterator();
+        while (bytes > byteBudget && loaded.size() > 1) {
+            Texture texture = eldest.next().getValue();
+            eldest.remove();
+            evictions++;
+            if (digestReferences.merge(texture.getDigest(), -1, Integer::sum) == 0) {
+                digestReferences.remove(texture.getDigest());
+                byDigest.remove(texture.getDigest());
+                bytes -= texture.size();
+            }
+        }
+    }
+}
 
 // Flyweight class
 class TreeType {
     private String name;
     private String color;
     private String texture;
+    private TextureCache textureCache;
 
     public TreeType(String name, String color, String texture) {
+        this(name, color, texture, null);
+    }
+
+    public TreeType(String name, String color, String texture, TextureCache textureCache) {
         this.name = name;
         this.color = color;
         this.texture = texture;
+        this.textureCache = textureCache;
+        if (textureCache != null) {
+            textureCache.load(texture);
+        }
+    }
+
+    public String getName() {
+        return name;
+    }
+
+    public String getColor() {
+        return color;
+    }
+
+    public String getTexture() {
+        return texture;
+    }
+
+    // Texture data if it is already in memory, otherwise null while it loads in the background
+    public Texture getLoadedTexture() {
+        return textureCache == null ? null : textureCache.getIfLoaded(texture);
     }
 
     public void draw(String canvas, int x, int y) {
-        System.out.println("Drawing a " + this.name + " tree of color " + this.color + " and texture " + this.texture + " on canvas at coordinates (" + x + ", " + y + ")");
+        System.out.println(describe(x, y));
+    }
+
+    // Buffered variant for renderers that composite their output later
+    public void draw(StringBuilder out, String canvas, int x, int y) {
+        out.append(describe(x, y)).append(System.lineSeparator());
+    }
+
+    private String describe(int x, int y) {
+        return "Drawing a " + this.name + " tree of color " + this.color + " and texture " + this.texture + " on canvas at coordinates (" + x + ", " + y + ")";
     }
 }
 
 // Flyweight Factory
 class TreeFactory {
     private static Map<String, TreeType> treeTypes = new HashMap<>();
+    // Every flyweight also gets a short index, so columnar storage can refer to it without a reference
+    private static List<TreeType> typeTable = new ArrayList<>();
+    private static Map<TreeType, Short> typeIndexes = new HashMap<>();
+    private static TextureCache textureCache;
+
+    // Tree types created after this call load their textures through the cache
+    public static void setTextureCache(TextureCache cache) {
+        textureCache = cache;
+    }
 
     public static TreeType getTreeType(String name, String color, String texture) {
         String key = name + color + texture;
         if(!treeTypes.containsKey(key)) {
-            treeTypes.put(key, new TreeType(name, color, texture));
+            TreeType type = new TreeType(name, color, texture, textureCache);
+            if (typeTable.size() > Short.MAX_VALUE) {
+                throw new IllegalStateException("Too many tree types: " + typeTable.size());
+            }
+            typeIndexes.put(type, (short) typeTable.size());
+            typeTable.add(type);
+            treeTypes.put(key, type);
             System.out.println("Creating a new TreeType: " + name + ", " + color + ", " + texture);
         }
         return treeTypes.get(key);
     }
+
+    public static short getTreeTypeIndex(String name, String color, String texture) {
+        return typeIndexes.get(getTreeType(name, color, texture));
+    }
+
+    public static TreeType getTreeType(short index) {
+        return typeTable.get(index);
+    }
+
+    public static int getTreeTypeCount() {
+        return typeTable.size();
+    }
 }
 
 // Contextual class
@@ -69,13 +352,672 @@ class Forest {
     }
 }
 
+// Visible region of a canvas, bounds are inclusive
+class Viewport {
+    final int minX, minY, maxX, maxY;
+
+    public Viewport(int minX, int minY, int maxX, int maxY) {
+        this.minX = minX;
+        this.minY = minY;
+        this.maxX = maxX;
+        this.maxY = maxY;
+    }
+
+    public boolean contains(int x, int y) {
+        return x >= minX && x <= maxX && y >= minY && y <= maxY;
+    }
+}
+
+// Uniform grid over tree indices, so a query only touches the cells it overlaps.
+// Stored compactly: the sorted keys of the occupied cells, where each cell's run starts,
+// and one permutation of the tree indices grouped by cell. That is 4 bytes per tree plus
+// 12 per occupied cell. Newly planted trees go to a small sorted side buffer that queries
+// scan too; once it holds more than a fraction of the trees it is merged into the arrays
+// in one linear pass, so planting costs amortized constant time.
+class SpatialGrid {
+    private static final int MIN_PENDING = 4096;
+    // The side buffer is merged once it holds more than 1/32 of the indexed trees
+    private static final int PENDING_SHIFT = 5;
+
+    private static class PendingCell {
+        int[] indices = new int[2];
+        int size;
+
+        void add(int index) {
+            if (size == indices.length) {
+                indices = Arrays.copyOf(indices, size * 2);
+            }
+            indices[size++] = index;
+        }
+    }
+
+    private final int cellSize;
+    private final ColumnarForest forest;
+    private int minCellX = Integer.MAX_VALUE, minCellY = Integer.MAX_VALUE;
+    private int maxCellX = Integer.MIN_VALUE, maxCellY = Integer.MIN_VALUE;
+
+    private long[] cellKeys = new long[0];
+    // Trees of cell i are order[cellStart[i]] up to order[cellStart[i + 1]]
+    private int[] cellStart = {0};
+    private int[] order = new int[0];
+    // Trees planted since the last merge, by cell key
+    private final TreeMap<Long, PendingCell> pending = new TreeMap<>();
+    private int pendingTrees;
+
+    public SpatialGrid(int cellSize, ColumnarForest forest) {
+        if (cellSize <= 0) {
+            throw new IllegalArgumentException("Cell size must be positive: " + cellSize);
+        }
+        this.cellSize = cellSize;
+        this.forest = forest;
+    }
+
+    // Row-major key: signed row in the high half, column flipped to unsigned order in the low half
+    private static long key(int cellX, int cellY) {
+        return ((long) cellY << 32) | ((cellX ^ 0x80000000) & 0xFFFFFFFFL);
+    }
+
+    private static int cellX(long key) {
+        return (int) key ^ 0x80000000;
+    }
+
+    private static int cellY(long key) {
+        return (int) (key >> 32);
+    }
+
+    private int cellOf(int coordinate) {
+        return Math.floorDiv(coordinate, cellSize);
+    }
+
+    public int getCellSize() {
+        return cellSize;
+    }
+
+    public int getMinCellY() {
+        return minCellY;
+    }
+
+    public int getMaxCellY() {
+        return maxCellY;
+    }
+
+    // Indices must be added in increasing order
+    public void add(int index, int x, int y) {
+        int cellX = cellOf(x), cellY = cellOf(y);
+        pending.computeIfAbsent(key(cellX, cellY), k -> new PendingCell()).add(index);
+        pendingTrees++;
+        minCellX = Math.min(minCellX, cellX);
+        minCellY = Math.min(minCellY, cellY);
+        maxCellX = Math.max(maxCellX, cellX);
+        maxCellY = Math.max(maxCellY, cellY);
+        if (pendingTrees > Math.max(MIN_PENDING, order.length >>> PENDING_SHIFT)) {
+            merge();
+        }
+    }
+
+    // Merges the side buffer into the sorted arrays. Pending indices are all larger than the
+    // indexed ones, so appending them to their cell's run keeps every run ascending.
+    private void merge() {
+        long[] pendingKeys = new long[pending.size()];
+        PendingCell[] pendingCells = new PendingCell[pending.size()];
+        int p = 0;
+        int newCells = 0;
+        for (Map.Entry<Long, PendingCell> entry : pending.entrySet()) {
+            pendingKeys[p] = entry.getKey();
+            pendingCells[p++] = entry.getValue();
+            if (Arrays.binarySearch(cellKeys, entry.getKey()) < 0) {
+                newCells++;
+            }
+        }
+        int cells = cellKeys.length + newCells;
+        long[] mergedKeys = new long[cells];
+        int[] mergedStart = new int[cells + 1];
+        int[] mergedOrder = new int[order.length + pendingTrees];
+        int oldCell = 0, pendingCell = 0, out = 0;
+        for (int cell = 0; cell < cells; cell++) {
+            long key;
+            if (pendingCell == pendingKeys.length
+                    || (oldCell < cellKeys.length && cellKeys[oldCell] <= pendingKeys[pendingCell])) {
+                key = cellKeys[oldCell];
+            } else {
+                key = pendingKeys[pendingCell];
+            }
+            mergedKeys[cell] = key;
+            mergedStart[cell] = out;
+            if (oldCell < cellKeys.length && cellKeys[oldCell] == key) {
+                int length = cellStart[oldCell + 1] - cellStart[oldCell];
+                System.arraycopy(order, cellStart[oldCell], mergedOrder, out, length);
+                out += length;
+                oldCell++;
+            }
+            if (pendingCell < pendingKeys.length && pendingKeys[pendingCell] == key) {
+                PendingCell buffered = pendingCells[pendingCell++];
+                System.arraycopy(buffered.indices, 0, mergedOrder, out, buffered.size);
+                out += buffered.size;
+            }
+        }
+        mergedStart[cells] = out;
+        cellKeys = mergedKeys;
+        cellStart = mergedStart;
+        order = mergedOrder;
+        pending.clear();
+        pendingTrees = 0;
+    }
+
+    // Visits the indices of every cell overlapping the viewport, cells in row-major order.
+    // Callers still have to test the exact coordinates against the viewport.
+    public void forEachCandidate(Viewport viewport, IntConsumer action) {
+        int fromX = Math.max(cellOf(viewport.minX), minCellX), toX = Math.min(cellOf(viewport.maxX), maxCellX);
+        int fromY = Math.max(cellOf(viewport.minY), minCellY), toY = Math.min(cellOf(viewport.maxY), maxCellY);
+        if (fromX > toX || fromY > toY) {
+            return;
+        }
+        // Each row's occupied cells are one contiguous run of the sorted keys,
+        // walked together with the same row of the side buffer
+        for (int cellY = fromY; cellY <= toY; cellY++) {
+            long first = key(fromX, cellY), last = key(toX, cellY);
+            int cell = Arrays.binarySearch(cellKeys, first);
+            cell = cell < 0 ? -cell - 1 : cell;
+            Iterator<Map.Entry<Long, PendingCell>> buffered = pending.isEmpty()
+                    ? null : pending.subMap(first, true, last, true).entrySet().iterator();
+            Map.Entry<Long, PendingCell> next = buffered != null && buffered.hasNext() ? buffered.next() : null;
+            while (cell < cellKeys.length && cellKeys[cell] <= last) {
+                while (next != null && next.getKey() < cellKeys[cell]) {
+                    forEachInPending(next.getValue(), action);
+                    next = buffered.hasNext() ? buffered.next() : null;
+                }
+                forEachInCell(cell, action);
+                if (next != null && next.getKey() == cellKeys[cell]) {
+                    forEachInPending(next.getValue(), action);
+                    next = buffered.hasNext() ? buffered.next() : null;
+                }
+                cell++;
+            }
+            while (next != null) {
+                forEachInPending(next.getValue(), action);
+                next = buffered.hasNext() ? buffered.next() : null;
+            }
+        }
+    }
+
+    public void forEachInCell(int cellX, int cellY, IntConsumer action) {
+        long key = key(cellX, cellY);
+        int cell = Arrays.binarySearch(cellKeys, key);
+        if (cell >= 0) {
+            forEachInCell(cell, action);
+        }
+        if (pendingTrees > 0) {
+            PendingCell buffered = pending.get(key);
+            if (buffered != null) {
+                forEachInPending(buffered, action);
+            }
+        }
+    }
+
+    private void forEachInCell(int cell, IntConsumer action) {
+        for (int i = cellStart[cell]; i < cellStart[cell + 1]; i++) {
+            action.accept(order[i]);
+        }
+    }
+
+    private static void forEachInPending(PendingCell cell, IntConsumer action) {
+        for (int i = 0; i < cell.size; i++) {
+            action.accept(cell.indices[i]);
+        }
+    }
+
+    // Searches rings of cells outwards from (x, y) until no closer tree can exist. Rings start at
+    // the first one reaching the occupied bounds and are clipped to them, so a far-away query
+    // costs no more than a near one; a ring wider than the number of occupied cells falls back
+    // to scanning those cells directly.
+    public int nearest(int x, int y) {
+        int occupied = cellKeys.length + pending.size();
+        if (occupied == 0) {
+            return -1;
+        }
+        int centerX = cellOf(x), centerY = cellOf(y);
+        int firstRing = Math.max(Math.max(minCellX - centerX, centerX - maxCellX),
+                Math.max(minCellY - centerY, centerY - maxCellY));
+        int maxRing = Math.max(Math.max(Math.abs(centerX - minCellX), Math.abs(centerX - maxCellX)),
+                Math.max(Math.abs(centerY - minCellY), Math.abs(centerY - maxCellY)));
+        long[] best = {Long.MAX_VALUE, -1};
+        IntConsumer candidate = index -> {
+            long dx = (long) forest.getX(index) - x, dy = (long) forest.getY(index) - y;
+            long distance = dx * dx + dy * dy;
+            if (distance < best[0] || (distance == best[0] && index < best[1])) {
+                best[0] = distance;
+                best[1] = index;
+            }
+        };
+        for (int ring = Math.max(firstRing, 0); ring <= maxRing; ring++) {
+            int fromX = Math.max(centerX - ring, minCellX), toX = Math.min(centerX + ring, maxCellX);
+            int fromY = Math.max(centerY - ring + 1, minCellY), toY = Math.min(centerY + ring - 1, maxCellY);
+            boolean top = centerY - ring >= minCellY, bottom = ring > 0 && centerY + ring <= maxCellY;
+            boolean left = centerX - ring >= minCellX, right = ring > 0 && centerX + ring <= maxCellX;
+            long cells = ((top ? 1L : 0) + (bottom ? 1 : 0)) * Math.max(toX - fromX + 1, 0)
+                    + ((left ? 1L : 0) + (right ? 1 : 0)) * Math.max(toY - fromY + 1, 0);
+            if (cells > occupied) {
+                scanOccupied(x, y, best, candidate);
+                break;
+            }
+            for (int cellX = fromX; cellX <= toX; cellX++) {
+                if (top) {
+                    forEachInCell(cellX, centerY - ring, candidate);
+                }
+                if (bottom) {
+                    forEachInCell(cellX, centerY + ring, candidate);
+                }
+            }
+            for (int cellY = fromY; cellY <= toY; cellY++) {
+                if (left) {
+                    forEachInCell(centerX - ring, cellY, candidate);
+                }
+                if (right) {
+                    forEachInCell(centerX + ring, cellY, candidate);
+                }
+            }
+            // Anything in the next ring is at least ring * cellSize away
+            long reach = (long) ring * cellSize;
+            if (best[1] >= 0 && best[0] <= reach * reach) {
+                break;
+            }
+        }
+        return (int) best[1];
+    }
+
+    // Visits every occupied cell that could still hold a tree no farther than the best so far
+    private void scanOccupied(int x, int y, long[] best, IntConsumer candidate) {
+        for (int cell = 0; cell < cellKeys.length; cell++) {
+            if (cellDistance(cellKeys[cell], x, y) <= best[0]) {
+                forEachInCell(cell, candidate);
+            }
+        }
+        for (Map.Entry<Long, PendingCell> entry : pending.entrySet()) {
+            if (cellDistance(entry.getKey(), x, y) <= best[0]) {
+                forEachInPending(entry.getValue(), candidate);
+            }
+        }
+    }
+
+    // Squared distance from (x, y) to the closest point of the cell
+    private long cellDistance(long key, int x, int y) {
+        long fromX = (long) cellX(key) * cellSize, fromY = (long) cellY(key) * cellSize;
+        long dx = x < fromX ? fromX - x : Math.max(x - (fromX + cellSize - 1), 0);
+        long dy = y < fromY ? fromY - y : Math.max(y - (fromY + cellSize - 1), 0);
+        return dx * dx + dy * dy;
+    }
+}
+
+// Columnar client class: keeps the extrinsic state in primitive arrays instead of Tree objects.
+// A tree costs 10 bytes (two ints and a short type index) instead of a Tree object plus a list slot,
+// and 4 more in the spatial grid.
+class ColumnarForest {
+    private static final int CHUNK_BITS = 16;
+    private static final int CHUNK_SIZE = 1 << CHUNK_BITS;
+    private static final int CHUNK_MASK = CHUNK_SIZE - 1;
+
+    // Storage grows one fixed-size chunk at a time, so planting never copies the existing trees
+    private int[][] xs = new int[0][];
+    private int[][] ys = new int[0][];
+    private short[][] types = new short[0][];
+    private int size;
+    private final SpatialGrid grid;
+
+    public ColumnarForest() {
+        this(64);
+    }
+
+    public ColumnarForest(int cellSize) {
+        this.grid = new SpatialGrid(cellSize, this);
+    }
+
+    public void plantTree(int x, int y, String name, String color, String texture) {
+        short type = TreeFactory.getTreeTypeIndex(name, color, texture);
+        int chunk = size >>> CHUNK_BITS;
+        if (chunk == xs.length) {
+            xs = Arrays.copyOf(xs, chunk + 1);
+            ys = Arrays.copyOf(ys, chunk + 1);
+            types = Arrays.copyOf(types, chunk + 1);
+            xs[chunk] = new int[CHUNK_SIZE];
+            ys[chunk] = new int[CHUNK_SIZE];
+            types[chunk] = new short[CHUNK_SIZE];
+        }
+        int offset = size & CHUNK_MASK;
+        xs[chunk][offset] = x;
+        ys[chunk][offset] = y;
+        types[chunk][offset] = type;
+        grid.add(size, x, y);
+        size++;
+    }
+
+    public int size() {
+        return size;
+    }
+
+    SpatialGrid getGrid() {
+        return grid;
+    }
+
+    public int getX(int index) {
+        return xs[index >>> CHUNK_BITS][index & CHUNK_MASK];
+    }
+
+    public int getY(int index) {
+        return ys[index >>> CHUNK_BITS][index & CHUNK_MASK];
+    }
+
+    public short getTypeIndex(int index) {
+        return types[index >>> CHUNK_BITS][index & CHUNK_MASK];
+    }
+
+    public void draw(String canvas) {
+        int remaining = size;
+        for (int chunk = 0; remaining > 0; chunk++) {
+            int[] chunkXs = xs[chunk];
+            int[] chunkYs = ys[chunk];
+            short[] chunkTypes = types[chunk];
+            int length = Math.min(remaining, CHUNK_SIZE);
+            for (int i = 0; i < length; i++) {
+                TreeFactory.getTreeType(chunkTypes[i]).draw(canvas, chunkXs[i], chunkYs[i]);
+            }
+            remaining -= length;
+        }
+    }
+
+    public void save(Path file) throws IOException {
+        ForestFile.write(this, file);
+    }
+
+    // Draws only the trees inside the viewport, in grid cell order
+    public void draw(String canvas, Viewport viewport) {
+        forEachInRange(viewport, index ->
+                TreeFactory.getTreeType(getTypeIndex(index)).draw(canvas, getX(index), getY(index)));
+    }
+
+    public void forEachInRange(Viewport viewport, IntConsumer action) {
+        grid.forEachCandidate(viewport, index -> {
+            if (viewport.contains(getX(index), getY(index))) {
+                action.accept(index);
+            }
+        });
+    }
+
+    // Index of the tree closest to (x, y), or -1 if the forest is empty
+    public int nearest(int x, int y) {
+        return grid.nearest(x, y);
+    }
+}
+
+// On-disk layout of a saved forest, little-endian:
+// header (magic, version, tree count, type count), the TreeType dictionary as
+// length-prefixed UTF-8 strings padded to 4 bytes, then the x, y and type index columns.
+class ForestFile {
+    static final int MAGIC = 0x54535246; // "FRST"
+    static final int VERSION = 1;
+    static final int HEADER_BYTES = 16;
+
+    static void write(ColumnarForest forest, Path file) throws IOException {
+        try (FileChannel channel = FileChannel.open(file, StandardOpenOption.CREATE,
+                StandardOpenOption.WRITE, StandardOpenOption.TRUNCATE_EXISTING)) {
+            ByteBuffer buffer = ByteBuffer.allocateDirect(1 << 16).order(ByteOrder.LITTLE_ENDIAN);
+            int typeCount = TreeFactory.getTreeTypeCount();
+            buffer.putInt(MAGIC).putInt(VERSION).putInt(forest.size()).putInt(typeCount);
+            int dictionaryBytes = 0;
+            for (short i = 0; i < typeCount; i++) {
+                TreeType type = TreeFactory.getTreeType(i);
+                for (String value : new String[]{type.getName(), type.getColor(), type.getTexture()}) {
+                    byte[] bytes = value.getBytes(StandardCharsets.UTF_8);
+                    ensureRemaining(channel, buffer, 4 + bytes.length);
+                    buffer.putInt(bytes.length).put(bytes);
+                    dictionaryBytes += 4 + bytes.length;
+                }
+            }
+            for (int padding = (4 - dictionaryBytes % 4) % 4; padding > 0; padding--) {
+                ensureRemaining(channel, buffer, 1);
+                buffer.put((byte) 0);
+            }
+            for (int i = 0; i < forest.size(); i++) {
+                ensureRemaining(channel, buffer, 4);
+                buffer.putInt(forest.getX(i));
+            }
+            for (int i = 0; i < forest.size(); i++) {
+                ensureRemaining(channel, buffer, 4);
+                buffer.putInt(forest.getY(i));
+            }
+            for (int i = 0; i < forest.size(); i++) {
+                ensureRemaining(channel, buffer, 2);
+                buffer.putShort(forest.getTypeIndex(i));
+            }
+            flush(channel, buffer);
+        }
+    }
+
+    private static void ensureRemaining(FileChannel channel, ByteBuffer buffer, int bytes) throws IOException {
+        if (buffer.remaining() < bytes) {
+            flush(channel, buffer);
+            if (buffer.remaining() < bytes) {
+                throw new IOException("Value of " + bytes + " bytes does not fit the write buffer");
+            }
+        }
+    }
+
+    private static void flush(FileChannel channel, ByteBuffer buffer) throws IOException {
+        buffer.flip();
+        while (buffer.hasRemaining()) {
+            channel.write(buffer);
+        }
+        buffer.clear();
+    }
+}
+
+// Read-only forest backed by a memory-mapped file written by ColumnarForest.save.
+// Opening only decodes the small TreeType dictionary; coordinates are read straight from the mapping.
+class MappedForest {
+    private final int size;
+    private final TreeType[] types;
+    private final IntBuffer xs;
+    private final IntBuffer ys;
+    private final ShortBuffer typeIndexes;
+
+    private MappedForest(int size, TreeType[] types, IntBuffer xs, IntBuffer ys, ShortBuffer typeIndexes) {
+        this.size = size;
+        this.types = types;
+        this.xs = xs;
+        this.ys = ys;
+        this.typeIndexes = typeIndexes;
+    }
+
+    public static MappedForest open(Path file) throws IOException {
+        try (FileChannel channel = FileChannel.open(file, StandardOpenOption.READ)) {
+            ByteBuffer header = channel.map(FileChannel.MapMode.READ_ONLY, 0, ForestFile.HEADER_BYTES)
+                    .order(ByteOrder.LITTLE_ENDIAN);
+            if (header.getInt() != ForestFile.MAGIC || header.getInt() != ForestFile.VERSION) {
+                throw new IOException("Not a forest file: " + file);
+            }
+            int size = header.getInt();
+            int typeCount = header.getInt();
+
+            // The dictionary is small and variable-length, so it is the only part that gets decoded
+            ByteBuffer dictionary = channel.map(FileChannel.MapMode.READ_ONLY, ForestFile.HEADER_BYTES,
+                    Math.min(channel.size(), Integer.MAX_VALUE) - ForestFile.HEADER_BYTES).order(ByteOrder.LITTLE_ENDIAN);
+            TreeType[] types = new TreeType[typeCount];
+            for (int i = 0; i < typeCount; i++) {
+                types[i] = TreeFactory.getTreeType(readString(dictionary), readString(dictionary), readString(dictionary));
+            }
+            long columns = ForestFile.HEADER_BYTES + (dictionary.position() + 3) / 4 * 4;
+            long columnBytes = (long) size * 4;
+            if (columnBytes > Integer.MAX_VALUE) {
+                throw new IOException("Forest too large to map: " + size + " trees");
+            }
+            if (channel.size() < columns + columnBytes * 2 + (long) size * 2) {
+                throw new IOException("Truncated forest file: " + file);
+            }
+            IntBuffer xs = channel.map(FileChannel.MapMode.READ_ONLY, columns, columnBytes)
+                    .order(ByteOrder.LITTLE_ENDIAN).asIntBuffer();
+            IntBuffer ys = channel.map(FileChannel.MapMode.READ_ONLY, columns + columnBytes, columnBytes)
+                    .order(ByteOrder.LITTLE_ENDIAN).asIntBuffer();
+            ShortBuffer typeIndexes = channel.map(FileChannel.MapMode.READ_ONLY, columns + columnBytes * 2, (long) size * 2)
+                    .order(ByteOrder.LITTLE_ENDIAN).asShortBuffer();
+            return new MappedForest(size, types, xs, ys, typeIndexes);
+        }
+    }
+
+    private static String readString(ByteBuffer buffer) {
+        byte[] bytes = new byte[buffer.getInt()];
+        buffer.get(bytes);
+        return new String(bytes, StandardCharsets.UTF_8);
+    }
+
+    public int size() {
+        return size;
+    }
+
+    public int getX(int index) {
+        return xs.get(index);
+    }
+
+    public int getY(int index) {
+        return ys.get(index);
+    }
+
+    public TreeType getType(int index) {
+        return types[typeIndexes.get(index)];
+    }
+
+    public void draw(String canvas) {
+        for (int i = 0; i < size; i++) {
+            types[typeIndexes.get(i)].draw(canvas, xs.get(i), ys.get(i));
+        }
+    }
+}
+
+// Renders a viewport of a ColumnarForest on a ForkJoin pool.
+// The viewport is cut into tiles of whole grid rows, each tile renders into its own buffer,
+// and the buffers are written out in tile order, so the output matches draw(canvas, viewport).
+// Trees must not be planted while a render is running.
+class ParallelForestRenderer {
+    private final ForkJoinPool pool;
+    private final int tilesPerThread;
+
+    public ParallelForestRenderer() {
+        this(ForkJoinPool.commonPool(), 4);
+    }
+
+    public ParallelForestRenderer(ForkJoinPool pool, int tilesPerThread) {
+        this.pool = pool;
+        this.tilesPerThread = Math.max(1, tilesPerThread);
+    }
+
+    private static class TileTask extends RecursiveAction {
+        private static final long serialVersionUID = 1L;
+
+        private final ColumnarForest forest;
+        private final String canvas;
+        private final Viewport[] tiles;
+        private final StringBuilder[] buffers;
+        private final int from, to;
+
+        TileTask(ColumnarForest forest, String canvas, Viewport[] tiles, StringBuilder[] buffers, int from, int to) {
+            this.forest = forest;
+            this.canvas = canvas;
+            this.tiles = tiles;
+            this.buffers = buffers;
+            this.from = from;
+            this.to = to;
+        }
+
+        @Override
+        protected void compute() {
+            if (to - from == 1) {
+                StringBuilder buffer = new StringBuilder();
+                forest.forEachInRange(tiles[from], index -> TreeFactory.getTreeType(forest.getTypeIndex(index))
+                        .draw(buffer, canvas, forest.getX(index), forest.getY(index)));
+                buffers[from] = buffer;
+                return;
+            }
+            int middle = (from + to) >>> 1;
+            invokeAll(new TileTask(forest, canvas, tiles, buffers, from, middle),
+                    new TileTask(forest, canvas, tiles, buffers, middle, to));
+        }
+    }
+
+    public String render(ColumnarForest forest, String canvas, Viewport viewport) {
+        Viewport[] tiles = split(forest.getGrid(), viewport);
+        StringBuilder[] buffers = new StringBuilder[tiles.length];
+        if (tiles.length > 0) {
+            pool.invoke(new TileTask(forest, canvas, tiles, buffers, 0, tiles.length));
+        }
+        int length = 0;
+        for (StringBuilder buffer : buffers) {
+            length += buffer.length();
+        }
+        StringBuilder composite = new StringBuilder(length);
+        for (StringBuilder buffer : buffers) {
+            composite.append(buffer);
+        }
+        return composite.toString();
+    }
+
+    public void draw(ColumnarForest forest, String canvas, Viewport viewport) {
+        System.out.print(render(forest, canvas, viewport));
+    }
+
+    // Horizontal strips of whole grid rows, clipped to the viewport
+    private Viewport[] split(SpatialGrid grid, Viewport viewport) {
+        int cellSize = grid.getCellSize();
+        long fromRow = Math.max(Math.floorDiv(viewport.minY, cellSize), grid.getMinCellY());
+        long toRow = Math.min(Math.floorDiv(viewport.maxY, cellSize), grid.getMaxCellY());
+        if (fromRow > toRow) {
+            return new Viewport[0];
+        }
+        long rows = toRow - fromRow + 1;
+        int tileCount = (int) Math.min(rows, (long) pool.getParallelism() * tilesPerThread);
+        long rowsPerTile = (rows + tileCount - 1) / tileCount;
+        List<Viewport> tiles = new ArrayList<>();
+        for (long row = fromRow; row <= toRow; row += rowsPerTile) {
+            long lastRow = Math.min(row + rowsPerTile - 1, toRow);
+            int minY = (int) Math.max(viewport.minY, row * cellSize);
+            int maxY = (int) Math.min(viewport.maxY, (lastRow + 1) * cellSize - 1);
+            tiles.add(new Viewport(viewport.minX, minY, viewport.maxX, maxY));
+        }
+        return tiles.toArray(new Viewport[0]);
+    }
+}
+
 // Main class
 public class Main {
-    public static void main(String[] args) {
+    public static void main(String[] args) throws IOException {
+        Path textures = Files.createTempDirectory("textures");
+        for (String texture : new String[]{"Rough", "Smooth"}) {
+            Path textureFile = Files.write(textures.resolve(texture), new byte[]{1, 2, 3});
+            textureFile.toFile().deleteOnExit();
+        }
+        textures.toFile().deleteOnExit();
+        TextureCache textureCache = new TextureCache(textures, 1 << 20);
+        TreeFactory.setTextureCache(textureCache);
+
         Forest forest = new Forest();
         forest.plantTree(1, 2, "Oak", "Green", "Rough");
         forest.plantTree(2, 3, "Pine", "Dark Green", "Smooth");
         forest.plantTree(3, 4, "Oak", "Green", "Rough");
         forest.draw("Canvas1");
+
+        ColumnarForest columnarForest = new ColumnarForest();
+        columnarForest.plantTree(1, 2, "Oak", "Green", "Rough");
+        columnarForest.plantTree(2, 3, "Pine", "Dark Green", "Smooth");
+        columnarForest.plantTree(3, 4, "Oak", "Green", "Rough");
+        columnarForest.draw("Canvas2");
+        columnarForest.draw("Canvas3", new Viewport(2, 0, 10, 10));
+        System.out.println("Nearest tree to (0, 0) is #" + columnarForest.nearest(0, 0));
+        new ParallelForestRenderer().draw(columnarForest, "Canvas4", new Viewport(0, 0, 10, 10));
+
+        Path file = Files.createTempFile("forest", ".bin");
+        file.toFile().deleteOnExit();
+        columnarForest.save(file);
+        MappedForest mappedForest = MappedForest.open(file);
+        mappedForest.draw("Canvas5");
+
+        textureCache.load("Smooth").join();
+        System.out.println("Texture cache: " + textureCache.getStats());
     }
 }